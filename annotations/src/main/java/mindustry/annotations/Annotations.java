@@ -25,6 +25,19 @@ public class Annotations{
         boolean clamped() default false;
     }
 
+    /**
+     * Indicates that a float field is quantized when synced, to reduce snapshot size. Saves always use full precision.
+     * If the field is also a {@link SyncField} interpolated as an angle, it is wrapped to 0-360 before quantization.
+     */
+    @Target({ElementType.FIELD})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface SyncPrecision{
+        /** Smallest difference between two synced values. */
+        float value();
+        /** Size of the quantized value: 8, 16 or 32 bits. Values outside the range are clamped. If 0, a variable-length integer is used. */
+        int bits() default 0;
+    }
+
     /** Indicates that a field will not be read from the server when syncing the local player state. */
     @Target({ElementType.FIELD})
     @Retention(RetentionPolicy.SOURCE)
@@ -19,6 +19,8 @@ public class EntityIO{
     final static Json json = new Json();
     //suffixes for sync fields
     final static String targetSuf = "_TARGET_", lastSuf = "_LAST_";
+    //reads and writes quantized sync fields
+    final static ClassName quantized = ClassName.get("mindustry.io", "QuantizedIO");
     //replacements after refactoring
     final static StringMap replacements = StringMap.of("mindustry.entities.units.BuildRequest", "mindustry.entities.units.BuildPlan");
 
@@ -128,7 +130,7 @@ public class EntityIO{
                 Svar var = allFields.find(s -> s.name().equals(field.name));
                 if(var == null || var.has(NoSync.class)) continue;
 
-                io(field.type, "this." + field.name, true);
+                syncIO(var, field.type, "this." + field.name);
             }
         }else{
             Revision rev = revisions.peek();
@@ -151,12 +153,12 @@ public class EntityIO{
                     st(field.name + lastSuf + " = this." + field.name);
                 }
 
-                io(field.type, "this." + (sf ? field.name + targetSuf : field.name) + " = ", true);
+                syncIO(var, field.type, "this." + (sf ? field.name + targetSuf : field.name) + " = ");
 
                 if(sl){
                     ncont("else" );
 
-                    io(field.type, "", true);
+                    syncIO(var, field.type, "");
 
                     //just assign the two values so jumping does not occur on de-possession
                     if(sf){
@@ -221,6 +223,23 @@ public class EntityIO{
         econt();
     }
 
+    /** Writes or reads a synced field, quantizing it if requested. */
+    private void syncIO(Svar var, String type, String field) throws Exception{
+        SyncPrecision precision = var.annotation(SyncPrecision.class);
+
+        if(precision != null && type.equals("float")){
+            boolean angle = var.has(SyncField.class) && !var.annotation(SyncField.class).value();
+
+            if(write){
+                st("$T.write(write, $L, $Lf, $L, $L)", quantized, field, precision.value(), precision.bits(), angle);
+            }else{
+                st("$L$T.read(read, $Lf, $L, $L)", field, quantized, precision.value(), precision.bits(), angle);
+            }
+        }else{
+            io(type, field, true);
+        }
+    }
+
     private void io(String type, String field, boolean network) throws Exception{
         type = type.replace("mindustry.gen.", "");
         type = replacements.get(type, type);
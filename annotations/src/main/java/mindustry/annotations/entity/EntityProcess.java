@@ -363,6 +363,8 @@ public class EntityProcess extends BaseProcessor{
                         allFieldSpecs.add(spec);
                         allFields.add(f);
 
+                        if(f.has(SyncPrecision.class) && !f.tname().toString().equals("float")) err("SyncPrecision fields must be of type float", f);
+
                         //add extra sync fields
                         if(f.has(SyncField.class) && isSync && !legacy){
                             if(!f.tname().toString().equals("float")) err("All SyncFields must be of type float", f);
@@ -200,6 +200,8 @@ public class Vars implements Loadable{
     public static Fi bebuildDirectory;
     /** file used to store launch ID */
     public static Fi launchIDFile;
+    /** index of the metadata of save and map files */
+    public static MetaIndex metaIndex;
     /** empty map, indicates no current map */
     public static Map emptyMap;
     /** empty tile for payloads */
@@ -295,6 +297,7 @@ public class Vars implements Loadable{
         modDirectory = dataDirectory.child("mods/");
         schematicDirectory = dataDirectory.child("schematics/");
         bebuildDirectory = dataDirectory.child("be_builds/");
+        metaIndex = new MetaIndex(dataDirectory.child("meta_index.dat"));
         emptyMap = new Map(new StringMap());
 
         if(tree == null) tree = new FileTree();
@@ -98,7 +98,7 @@ public class BaseBuilderAI{
                 var field = pathfinder.getField(data.team, Pathfinder.costGround, Pathfinder.fieldCore);
 
                 if(field.hasCompleteWeights()){
-                    int[] weights = field.completeWeights;
+                    var weights = field.completeWeights;
                     for(int i = 0; i < pathStep; i++){
                         int minCost = Integer.MAX_VALUE;
                         int cx = calcTile.x, cy = calcTile.y;
@@ -107,8 +107,8 @@ public class BaseBuilderAI{
                             int nx = cx + p.x, ny = cy + p.y, packed = world.packArray(nx, ny);
 
                             Tile other = world.tile(nx, ny);
-                            if(other != null && weights[packed] < minCost && weights[packed] != -1){
-                                minCost = weights[packed];
+                            if(other != null && weights.get(packed) < minCost && weights.get(packed) != -1){
+                                minCost = weights.get(packed);
                                 calcTile = other;
                                 foundAny = true;
                             }
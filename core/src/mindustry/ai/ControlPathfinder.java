@@ -105,14 +105,21 @@ public class ControlPathfinder implements Runnable{
     0, -1
     };
 
-    //maps team -> pathCost -> flattened array of clusters in 2D
-    //(what about teams? different path costs?)
+    static final byte clusterUnknown = 0, clusterTerrain = 1, clusterTeam = 2;
+
+    //maps team -> pathCost -> flattened array of clusters in 2D; only used for clusters that contain team-owned tiles
     Cluster[][][] clusters;
+    //maps terrain variant -> pathCost -> flattened array of clusters in 2D; shared by all teams, see terrainVariant()
+    Cluster[][][] terrainClusters;
+    //whether each cluster index is stored in the team or terrain layer
+    byte[] clusterLayers;
 
     int cwidth, cheight;
 
     //temporarily used for resolving connections for intra-edges
     IntSet usedEdges = new IntSet();
+    //clusters already recomputed by the current updateClusters call, keyed by layer and path cost
+    IntSet updatedClusters = new IntSet();
     //tasks to run on pathfinding thread
     TaskQueue queue = new TaskQueue();
 
@@ -120,12 +127,24 @@ public class ControlPathfinder implements Runnable{
     ObjectMap<Unit, PathRequest> unitRequests = new ObjectMap<>();
 
     Seq<PathRequest> threadPathRequests = new Seq<>(false);
+    //PATHFINDING THREAD - requests waiting to be (re)initialized in the next batch
+    Seq<PathRequest> pendingRequests = new Seq<>(false);
+    //PATHFINDING THREAD - maps team, cost, goal and closest starting node to the request that was initialized for them; see initializeRequests()
+    ObjectMap<BatchKey, PathRequest> batchLeaders = new ObjectMap<>();
+    //PATHFINDING THREAD - reused for looking up batch leaders
+    BatchKey batchKey = new BatchKey();
+
+    /** Total number of path requests initialized, and how many of them needed their own cluster search. The rest were coalesced. */
+    public volatile long requestsReceived, requestsComputed;
+    /** Smoothed time between a request being made and initialized, in milliseconds. */
+    public volatile float requestLatency;
 
-    //TODO: very dangerous usage;
-    //TODO - it is accessed from the main thread
-    //TODO - it is written to on the pathfinding thread
     //maps position in world in (x + y * width format) | type (bitpacked to long) to a cache of flow fields
+    //PATHFINDING THREAD ONLY; the main thread reads the published copy
     LongMap<FieldCache> fields = new LongMap<>();
+    //immutable copy of fields, replaced by the pathfinding thread whenever fields changes
+    volatile LongMap<FieldCache> publishedFields = new LongMap<>();
+    boolean fieldsChanged;
     //MAIN THREAD ONLY
     Seq<FieldCache> fieldList = new Seq<>(false);
 
@@ -159,6 +178,10 @@ public class ControlPathfinder implements Runnable{
 
         //main thread only!
         long lastUpdateId = state.updateId;
+        //time at which the request was last queued for initialization
+        volatile long queueTime = Time.nanos();
+        //pathfinding thread only
+        boolean registered;
 
         //both threads
         volatile boolean notFound = false;
@@ -186,8 +209,11 @@ public class ControlPathfinder implements Runnable{
         final int goalPos;
         //frontier for flow fields
         final IntQueue frontier = new IntQueue();
-        //maps cluster index to field weights; 0 means uninitialized
+        //maps cluster index to field weights; 0 means uninitialized. PATHFINDING THREAD ONLY
         final IntMap<int[]> fields = new IntMap<>();
+        //immutable copy of fields for the main thread; weight arrays are shared
+        volatile IntMap<int[]> published = new IntMap<>();
+        boolean changed;
         final long mapKey;
 
         //main thread only!
@@ -202,9 +228,50 @@ public class ControlPathfinder implements Runnable{
             this.costId = costId;
             this.mapKey = Pack.longInt(goalPos, costId);
         }
+
+        //pathfinding thread only
+        void publish(){
+            if(changed){
+                changed = false;
+                var copy = new IntMap<int[]>(fields.size);
+                for(var entry : fields){
+                    copy.put(entry.key, entry.value);
+                }
+                published = copy;
+            }
+        }
+    }
+
+    /** Requests with equal keys share a single cluster search. */
+    static class BatchKey{
+        int team, costId, destination, node;
+
+        BatchKey set(int team, int costId, int destination, int node){
+            this.team = team;
+            this.costId = costId;
+            this.destination = destination;
+            this.node = node;
+            return this;
+        }
+
+        BatchKey copy(){
+            return new BatchKey().set(team, costId, destination, node);
+        }
+
+        @Override
+        public boolean equals(Object o){
+            return o instanceof BatchKey key && key.team == team && key.costId == costId && key.destination == destination && key.node == node;
+        }
+
+        @Override
+        public int hashCode(){
+            return ((team * 31 + costId) * 31 + destination) * 31 + node;
+        }
     }
 
     static class Cluster{
+        //team the cluster was last computed for
+        int team;
         IntSeq[] portals = new IntSeq[4];
         //maps rotation + index of portal to list of IntraEdge objects
         LongSeq[][] portalConnections = new LongSeq[4][];
@@ -220,11 +287,14 @@ public class ControlPathfinder implements Runnable{
             //TODO: can the pathfinding thread even see these?
             unitRequests = new ObjectMap<>();
             fields = new LongMap<>();
+            publishedFields = new LongMap<>();
             fieldList = new Seq<>(false);
 
             clusters = new Cluster[256][][];
+            terrainClusters = new Cluster[2][][];
             cwidth = Mathf.ceil((float)world.width() / clusterSize);
             cheight = Mathf.ceil((float)world.height() / clusterSize);
+            clusterLayers = new byte[cwidth * cheight];
 
 
             start();
@@ -270,7 +340,10 @@ public class ControlPathfinder implements Runnable{
                 //skipped N update -> drop it
                 if(field.lastUpdateId <= state.updateId - 30){
                     //make sure it's only modified on the main thread...? but what about calling get() on this thread??
-                    queue.post(() -> fields.remove(field.mapKey));
+                    queue.post(() -> {
+                        fields.remove(field.mapKey);
+                        fieldsChanged = true;
+                    });
                     Core.app.post(() -> fieldList.remove(field));
                 }
             }
@@ -284,11 +357,11 @@ public class ControlPathfinder implements Runnable{
                 Draw.draw(Layer.overlayUI, () -> {
                     Lines.stroke(1f);
 
-                    if(clusters[team] != null && clusters[team][cost] != null){
+                    if(clusters != null){
                         for(int cx = 0; cx < cwidth; cx++){
                             for(int cy = 0; cy < cheight; cy++){
 
-                                var cluster = clusters[team][cost][cy * cwidth + cx];
+                                var cluster = getCluster(team, cost, cx, cy);
                                 if(cluster != null){
                                     Lines.stroke(0.5f);
                                     Draw.color(Color.gray);
@@ -337,7 +410,7 @@ public class ControlPathfinder implements Runnable{
 
                     for(var fields : fieldList){
                         try{
-                            for(var entry : fields.fields){
+                            for(var entry : fields.published){
                                 int cx = entry.key % cwidth, cy = entry.key / cwidth;
                                 for(int y = 0; y < clusterSize; y++){
                                     for(int x = 0; x < clusterSize; x++){
@@ -407,7 +480,11 @@ public class ControlPathfinder implements Runnable{
     @Nullable Cluster getCluster(int team, int pathCost, int clusterIndex){
         if(clusters == null) return null;
 
-        Cluster[][] dim1 = clusters[team];
+        Cluster[][] dim1 = switch(clusterLayers[clusterIndex]){
+            case clusterTerrain -> terrainClusters[terrainVariant(team)];
+            case clusterTeam -> clusters[team];
+            default -> null;
+        };
 
         if(dim1 == null) return null;
 
@@ -419,6 +496,29 @@ public class ControlPathfinder implements Runnable{
         return dim2[clusterIndex];
     }
 
+    /**
+     * Terrain clusters are shared by all teams with the same variant. Costs only differ between teams for team-owned tiles,
+     * and for map area limits, which only apply to non-AI teams.
+     */
+    static int terrainVariant(int team){
+        return state.rules.limitMapArea && !Team.get(team).isAI() ? 1 : 0;
+    }
+
+    /** @return whether any tile in the cluster or the ring of tiles around it is owned by a team, which makes its portals and edges team-dependent. */
+    boolean hasTeamTiles(int cx, int cy){
+        int
+        minX = Math.max(cx * clusterSize - 1, 0), minY = Math.max(cy * clusterSize - 1, 0),
+        maxX = Math.min(cx * clusterSize + clusterSize, wwidth - 1), maxY = Math.min(cy * clusterSize + clusterSize, wheight - 1);
+        int[] tiles = pathfinder.tiles;
+
+        for(int y = minY; y <= maxY; y++){
+            for(int x = minX; x <= maxX; x++){
+                if(PathTile.team(tiles[x + y * wwidth]) != 0) return true;
+            }
+        }
+        return false;
+    }
+
     /** @return the cluster at specified coordinates; never null. */
     Cluster getCreateCluster(int team, int pathCost, int cx, int cy){
         return getCreateCluster(team, pathCost, cx + cy * cwidth);
@@ -435,12 +535,21 @@ public class ControlPathfinder implements Runnable{
     }
 
     Cluster updateCluster(int team, int pathCost, int cx, int cy){
-        //TODO: what if clusters are null for thread visibility reasons?
+        int index = cx + cy * cwidth;
+        byte layer = hasTeamTiles(cx, cy) ? clusterTeam : clusterTerrain;
+
+        //switching layers: drop the clusters of the old layer, they will be recreated lazily in the new one
+        if(clusterLayers[index] != layer){
+            clearClusters(layer == clusterTeam ? terrainClusters : clusters, index);
+            clusterLayers[index] = layer;
+        }
 
-        Cluster[][] dim1 = clusters[team];
+        Cluster[][][] layers = layer == clusterTeam ? clusters : terrainClusters;
+        int layerIndex = layer == clusterTeam ? team : terrainVariant(team);
+        Cluster[][] dim1 = layers[layerIndex];
 
         if(dim1 == null){
-            dim1 = clusters[team] = new Cluster[Team.all.length][];
+            dim1 = layers[layerIndex] = new Cluster[costTypes.size][];
         }
 
         Cluster[] dim2 = dim1[pathCost];
@@ -449,9 +558,9 @@ public class ControlPathfinder implements Runnable{
             dim2 = dim1[pathCost] = new Cluster[cwidth * cheight];
         }
 
-        Cluster cluster = dim2[cy * cwidth + cx];
+        Cluster cluster = dim2[index];
         if(cluster == null){
-            cluster = dim2[cy * cwidth + cx] = new Cluster();
+            cluster = dim2[index] = new Cluster();
         }else{
             //reset data
             for(var p : cluster.portals){
@@ -461,6 +570,7 @@ public class ControlPathfinder implements Runnable{
             }
         }
 
+        cluster.team = team;
         PathCost cost = idToCost(pathCost);
 
         for(int direction = 0; direction < 4; direction++){
@@ -470,18 +580,11 @@ public class ControlPathfinder implements Runnable{
                 continue;
             }
 
-            Cluster other = dim2[otherX + otherY * cwidth];
-            IntSeq portals;
-
-            if(other == null){
-                //create new portals at direction
+            //portals are not shared with the neighbour, as it may be in a different layer;
+            //both sides scan the same two rows in the same order, so they always compute the same portals
+            IntSeq portals = cluster.portals[direction];
+            if(portals == null){
                 portals = cluster.portals[direction] = new IntSeq(4);
-            }else{
-                //share portals with the other cluster
-                portals = cluster.portals[direction] = other.portals[(direction + 2) % 4];
-
-                //clear the portals, they're being recalculated now
-                portals.clear();
             }
 
             int addX = moveDirs[direction * 2], addY = moveDirs[direction * 2 + 1];
@@ -528,6 +631,15 @@ public class ControlPathfinder implements Runnable{
         return cluster;
     }
 
+    static void clearClusters(Cluster[][][] layers, int clusterIndex){
+        for(var dim1 : layers){
+            if(dim1 == null) continue;
+            for(var dim2 : dim1){
+                if(dim2 != null) dim2[clusterIndex] = null;
+            }
+        }
+    }
+
     void updateInnerEdges(int team, int cost, int cx, int cy, Cluster cluster){
         updateInnerEdges(team, idToCost(cost), cx, cy, cluster);
     }
@@ -962,6 +1074,7 @@ public class ControlPathfinder implements Runnable{
 
         if(!fields.containsKey(key)){
             fields.put(key, new int[clusterSize * clusterSize]);
+            cache.changed = true;
 
             if(addingFrontier){
                 for(int dir = 0; dir < 4; dir++){
@@ -1001,12 +1114,12 @@ public class ControlPathfinder implements Runnable{
         }
     }
 
-    private void initializePathRequest(PathRequest request, int team, int costId, int unitX, int unitY, int goalX, int goalY){
+    /** @param node the closest node to the unit, as returned by {@link #findClosestNode} */
+    private void initializePathRequest(PathRequest request, int team, int costId, int node, int unitX, int unitY, int goalX, int goalY){
         PathCost pcost = idToCost(costId);
 
         int goalPos = (goalX + goalY * wwidth);
 
-        int node = findClosestNode(team, costId, unitX, unitY);
         int dest = findClosestNode(team, costId, goalX, goalY);
 
         if(dest == Integer.MAX_VALUE){
@@ -1025,6 +1138,7 @@ public class ControlPathfinder implements Runnable{
         if(cache == null){
             cache = new FieldCache(pcost, costId, team, goalPos);
             fields.put(cache.mapKey, cache);
+            fieldsChanged = true;
             FieldCache fcache = cache;
             //register field in main thread for iteration
             Core.app.post(() -> fieldList.add(fcache));
@@ -1139,8 +1253,7 @@ public class ControlPathfinder implements Runnable{
             request.lastUpdateId = state.updateId;
 
             Tile tileOn = unit.tileOn(), initialTileOn = tileOn;
-            //TODO: should fields be accessible from this thread?
-            FieldCache fieldCache = fields.get(fieldKey);
+            FieldCache fieldCache = publishedFields.get(fieldKey);
 
             if(fieldCache != null && tileOn != null){
                 FieldCache old = request.oldCache;
@@ -1237,11 +1350,8 @@ public class ControlPathfinder implements Runnable{
 
             PathRequest f = request;
 
-            //on the pathfinding thread: initialize the request
-            queue.post(() -> {
-                threadPathRequests.add(f);
-                recalculatePath(f);
-            });
+            //on the pathfinding thread: initialize the request in the next batch
+            queue.post(() -> pendingRequests.add(f));
 
             out.set(destination);
 
@@ -1254,25 +1364,69 @@ public class ControlPathfinder implements Runnable{
         return false;
     }
 
-    private void recalculatePath(PathRequest request){
-        initializePathRequest(request, request.team, request.costId, request.unit.tileX(), request.unit.tileY(), request.destination % wwidth, request.destination / wwidth);
+    private void requeue(PathRequest request){
+        request.queueTime = Time.nanos();
+        queue.post(() -> pendingRequests.add(request));
     }
 
-    private int getCost(FieldCache cache, int x, int y, boolean requeue){
-        try{
-            int[] field = cache.fields.get(x / clusterSize + (y / clusterSize) * cwidth);
-            if(field == null){
-                if(!requeue) return 0;
-                //request a new flow cluster if one wasn't found; this may be a spammed a bit, but the function will return early once it's created the first time
-                queue.post(() -> addFlowCluster(cache, x / clusterSize, y / clusterSize, true));
-                return 0;
+    /**
+     * Initializes all pending requests. Requests with the same goal, cost, team and closest starting node share a flow field
+     * and would add the same clusters to it, so only the first one of each group runs the cluster search. Pathfinding thread only.
+     * The node depends on the exact position of the unit, as units in the same cluster may be separated by obstacles.
+     */
+    private void initializeRequests(){
+        if(pendingRequests.isEmpty()) return;
+
+        batchLeaders.clear();
+        long computed = 0;
+        float latency = requestLatency;
+
+        for(var request : pendingRequests){
+            if(request.invalidated) continue;
+
+            if(!request.registered){
+                request.registered = true;
+                threadPathRequests.add(request);
+            }
+
+            int unitX = request.unit.tileX(), unitY = request.unit.tileY();
+            int node = findClosestNode(request.team, request.costId, unitX, unitY);
+            var leader = batchLeaders.get(batchKey.set(request.team, request.costId, request.destination, node));
+
+            if(leader == null){
+                batchLeaders.put(batchKey.copy(), request);
+                initializePathRequest(request, request.team, request.costId, node, unitX, unitY, request.destination % wwidth, request.destination / wwidth);
+                computed ++;
+            }else{
+                request.notFound = leader.notFound;
             }
-            return field[(x % clusterSize) + (y % clusterSize) * clusterSize];
-        }catch(ArrayIndexOutOfBoundsException e){
-            //TODO: this crashes because the fields are being added while they're accessed. really bad. needs a long-term solution and some way to cache the map lookup results.
-            //using an array instead of a map would be nice, but that can mean something like 2500 entries in a sparse array, which is pretty terrible...
+
+            latency = Mathf.lerp(latency, Time.timeSinceNanos(request.queueTime) / 1000000f, 0.05f);
+        }
+
+        requestsReceived += pendingRequests.size;
+        requestsComputed += computed;
+        requestLatency = latency;
+
+        pendingRequests.clear();
+    }
+
+    /** @return the average number of requests served by each cluster search. */
+    public float coalescingRatio(){
+        long computed = requestsComputed;
+        return computed == 0 ? 1f : (float)requestsReceived / computed;
+    }
+
+    private int getCost(FieldCache cache, int x, int y, boolean requeue){
+        //the published map is never modified, so it is safe to read while the pathfinding thread adds clusters
+        int[] field = cache.published.get(x / clusterSize + (y / clusterSize) * cwidth);
+        if(field == null){
+            if(!requeue) return 0;
+            //request a new flow cluster if one wasn't found; this may be a spammed a bit, but the function will return early once it's created the first time
+            queue.post(() -> addFlowCluster(cache, x / clusterSize, y / clusterSize, true));
             return 0;
         }
+        return field[(x % clusterSize) + (y % clusterSize) * clusterSize];
     }
 
     private static boolean raycast(int team, PathCost type, int x1, int y1, int x2, int y2){
@@ -1416,38 +1570,63 @@ public class ControlPathfinder implements Runnable{
     }
 
     private void updateClustersComplete(int clusterIndex){
-        for(int team = 0; team < clusters.length; team++){
-            var dim1 = clusters[team];
-            if(dim1 != null){
+        updateClusters(clusterIndex, true);
+    }
+
+    private void updateClustersInner(int clusterIndex){
+        updateClusters(clusterIndex, false);
+    }
+
+    /** Recomputes every existing cluster with this index, in both layers. Terrain clusters are only computed once for all teams. */
+    private void updateClusters(int clusterIndex, boolean complete){
+        int cx = clusterIndex % cwidth, cy = clusterIndex / cwidth;
+        boolean teamDependent = hasTeamTiles(cx, cy);
+
+        //the layer changed (e.g. a building was placed on open terrain), so edges must be recomputed completely in the new layer
+        if(teamDependent != (clusterLayers[clusterIndex] == clusterTeam)){
+            complete = true;
+        }
+
+        updatedClusters.clear();
+
+        for(var layers : new Cluster[][][][]{clusters, terrainClusters}){
+            for(var dim1 : layers){
+                if(dim1 == null) continue;
+
                 for(int pathCost = 0; pathCost < dim1.length; pathCost++){
                     var dim2 = dim1[pathCost];
-                    if(dim2 != null){
-                        var cluster = dim2[clusterIndex];
-                        if(cluster != null){
-                            updateCluster(team, pathCost, clusterIndex % cwidth, clusterIndex / cwidth);
-                            clusterChanged(team, pathCost, clusterIndex % cwidth, clusterIndex / cwidth);
-                        }
+                    if(dim2 == null) continue;
+
+                    var cluster = dim2[clusterIndex];
+                    if(cluster == null) continue;
+
+                    int team = cluster.team;
+
+                    //when clusters of several teams move into the same terrain cluster, or it was just created by the team layer, it is only updated once
+                    int key = (teamDependent ? team : Team.all.length + terrainVariant(team)) * costTypes.size + pathCost;
+                    if(!updatedClusters.add(key)) continue;
+
+                    //updateCluster moves the cluster into the correct layer; other teams recreate theirs lazily when needed
+                    if(complete){
+                        updateCluster(team, pathCost, cx, cy);
+                    }else{
+                        updateInnerEdges(team, pathCost, cx, cy, cluster);
                     }
+                    clusterChanged(team, pathCost, cx, cy);
                 }
             }
         }
     }
 
-    private void updateClustersInner(int clusterIndex){
-        for(int team = 0; team < clusters.length; team++){
-            var dim1 = clusters[team];
-            if(dim1 != null){
-                for(int pathCost = 0; pathCost < dim1.length; pathCost++){
-                    var dim2 = dim1[pathCost];
-                    if(dim2 != null){
-                        var cluster = dim2[clusterIndex];
-                        if(cluster != null){
-                            updateInnerEdges(team, pathCost, clusterIndex % cwidth, clusterIndex / cwidth, cluster);
-                            clusterChanged(team, pathCost, clusterIndex % cwidth, clusterIndex / cwidth);
-                        }
-                    }
-                }
+    /** Publishes a copy of the field map for the main thread, if it changed. Pathfinding thread only. */
+    private void publishFields(){
+        if(fieldsChanged){
+            fieldsChanged = false;
+            var copy = new LongMap<FieldCache>(fields.size);
+            for(var entry : fields){
+                copy.put(entry.key, entry.value);
             }
+            publishedFields = copy;
         }
     }
 
@@ -1463,6 +1642,8 @@ public class ControlPathfinder implements Runnable{
                 if(state.isPlaying()){
                     queue.run();
 
+                    initializeRequests();
+
                     clustersToUpdate.each(cluster -> {
                         updateClustersComplete(cluster);
 
@@ -1502,6 +1683,7 @@ public class ControlPathfinder implements Runnable{
 
                                     //remove the field, to be recalculated next update one recalculatePath is processed
                                     fields.remove(field.mapKey);
+                                    fieldsChanged = true;
                                     Core.app.post(() -> fieldList.remove(field));
 
                                     //once the field is invalidated, make sure that all the requests that have it stored in their 'old' field, so units don't stutter during recalculations
@@ -1512,12 +1694,12 @@ public class ControlPathfinder implements Runnable{
                                     }
 
                                     //the recalculation is done next update, so multiple path requests in the same batch don't end up removing and recalculating the field multiple times.
-                                    queue.post(() -> recalculatePath(request));
+                                    requeue(request);
                                     //it has been processed.
                                     it.remove();
                                 }
                             }else{ //there's no field, presumably because a previous request already invalidated it.
-                                queue.post(() -> recalculatePath(request));
+                                requeue(request);
                                 it.remove();
                             }
                         }
@@ -1526,7 +1708,10 @@ public class ControlPathfinder implements Runnable{
                     //each update time (not total!) no longer than maxUpdate
                     for(FieldCache cache : fields.values()){
                         updateFields(cache, maxUpdate);
+                        cache.publish();
                     }
+
+                    publishFields();
                 }
 
                 try{
@@ -0,0 +1,189 @@
+package mindustry.ai;
+
+import java.util.*;
+
+/** Per-tile integer storage for flow fields. Every position starts out with the default value. */
+public abstract class FieldWeights{
+    /** Number of positions. */
+    public final int size;
+    /** Value of positions that have not been set. */
+    public final int defaultValue;
+
+    protected FieldWeights(int size, int defaultValue){
+        this.size = size;
+        this.defaultValue = defaultValue;
+    }
+
+    /** Creates either flat or chunked storage, depending on {@link Pathfinder#compactFields}. */
+    public static FieldWeights create(int size, int defaultValue){
+        return Pathfinder.compactFields ? new ChunkedWeights(size, defaultValue) : new IntWeights(size, defaultValue);
+    }
+
+    public abstract int get(int pos);
+
+    public abstract void set(int pos, int value);
+
+    /** Resets every position to the default value. */
+    public abstract void clear();
+
+    /** Copies all values of another storage of the same type and size into this one. */
+    public abstract void set(FieldWeights other);
+
+    /** @return the approximate memory used by this storage, in bytes. */
+    public abstract long memory();
+
+    /** Stores the current values in less memory, if possible. The values themselves do not change. */
+    public void compact(){
+    }
+
+    /** Flat storage with one int per position. */
+    public static class IntWeights extends FieldWeights{
+        public final int[] values;
+
+        public IntWeights(int size, int defaultValue){
+            super(size, defaultValue);
+            values = new int[size];
+            clear();
+        }
+
+        @Override
+        public int get(int pos){
+            return values[pos];
+        }
+
+        @Override
+        public void set(int pos, int value){
+            values[pos] = value;
+        }
+
+        @Override
+        public void clear(){
+            Arrays.fill(values, defaultValue);
+        }
+
+        @Override
+        public void set(FieldWeights other){
+            System.arraycopy(((IntWeights)other).values, 0, values, 0, size);
+        }
+
+        @Override
+        public long memory(){
+            return values.length * 4L;
+        }
+    }
+
+    /**
+     * Storage in lazily allocated chunks of values relative to the default value.
+     * Chunks that only hold the default value are never allocated, so unreachable regions cost nothing.
+     * Chunks start out with 16-bit values, and are replaced by a 32-bit copy once a value that does not fit is written to them.
+     * {@link #compact()} narrows them back once all their values fit again.
+     * Chunks are only replaced as a whole after being filled in, so other threads reading this storage never see a partial chunk.
+     */
+    public static class ChunkedWeights extends FieldWeights{
+        static final int chunkShift = 8, chunkSize = 1 << chunkShift, chunkMask = chunkSize - 1;
+
+        /** Each chunk is either null, a char[] or an int[]. */
+        final Object[] chunks;
+
+        public ChunkedWeights(int size, int defaultValue){
+            super(size, defaultValue);
+            chunks = new Object[(size + chunkMask) >> chunkShift];
+        }
+
+        @Override
+        public int get(int pos){
+            Object chunk = chunks[pos >> chunkShift];
+            if(chunk instanceof char[] values) return values[pos & chunkMask] + defaultValue;
+            if(chunk instanceof int[] values) return values[pos & chunkMask] + defaultValue;
+            return defaultValue;
+        }
+
+        @Override
+        public void set(int pos, int value){
+            int encoded = value - defaultValue, index = pos & chunkMask, chunkIndex = pos >> chunkShift;
+            boolean small = encoded >= 0 && encoded <= Character.MAX_VALUE;
+            Object chunk = chunks[chunkIndex];
+
+            if(chunk == null){
+                if(encoded == 0) return;
+                chunk = chunks[chunkIndex] = small ? new char[chunkSize] : new int[chunkSize];
+            }
+
+            if(chunk instanceof char[] values){
+                if(small){
+                    values[index] = (char)encoded;
+                }else{
+                    int[] wide = new int[chunkSize];
+                    for(int i = 0; i < chunkSize; i++){
+                        wide[i] = values[i];
+                    }
+                    wide[index] = encoded;
+                    chunks[chunkIndex] = wide;
+                }
+            }else{
+                ((int[])chunk)[index] = encoded;
+            }
+        }
+
+        @Override
+        public void clear(){
+            Arrays.fill(chunks, null);
+        }
+
+        @Override
+        public void set(FieldWeights other){
+            Object[] from = ((ChunkedWeights)other).chunks;
+
+            for(int i = 0; i < chunks.length; i++){
+                Object chunk = from[i], current = chunks[i];
+                if(chunk instanceof char[] values){
+                    if(current instanceof char[] dest){
+                        System.arraycopy(values, 0, dest, 0, chunkSize);
+                    }else{
+                        chunks[i] = values.clone();
+                    }
+                }else if(chunk instanceof int[] values){
+                    if(current instanceof int[] dest){
+                        System.arraycopy(values, 0, dest, 0, chunkSize);
+                    }else{
+                        chunks[i] = values.clone();
+                    }
+                }else{
+                    chunks[i] = null;
+                }
+            }
+        }
+
+        @Override
+        public void compact(){
+            for(int c = 0; c < chunks.length; c++){
+                if(!(chunks[c] instanceof int[] values)) continue;
+
+                char[] narrow = new char[chunkSize];
+                boolean fits = true;
+                for(int i = 0; i < chunkSize; i++){
+                    int value = values[i];
+                    if(value < 0 || value > Character.MAX_VALUE){
+                        fits = false;
+                        break;
+                    }
+                    narrow[i] = (char)value;
+                }
+
+                if(fits){
+                    chunks[c] = narrow;
+                }
+            }
+        }
+
+        @Override
+        public long memory(){
+            long total = chunks.length * 8L;
+            for(Object chunk : chunks){
+                if(chunk instanceof char[]) total += chunkSize * 2L;
+                if(chunk instanceof int[]) total += chunkSize * 4L;
+            }
+            return total;
+        }
+    }
+}
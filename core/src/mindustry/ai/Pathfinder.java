@@ -10,11 +10,15 @@ import mindustry.core.*;
 import mindustry.game.EventType.*;
 import mindustry.game.*;
 import mindustry.gen.*;
+import mindustry.net.Administration.*;
 import mindustry.world.*;
 import mindustry.world.blocks.environment.*;
 import mindustry.world.blocks.storage.*;
 import mindustry.world.meta.*;
 
+import java.util.*;
+import java.util.concurrent.*;
+
 import static mindustry.Vars.*;
 
 public class Pathfinder implements Runnable{
@@ -26,6 +30,17 @@ public class Pathfinder implements Runnable{
     static int wwidth, wheight;
 
     static final int impassable = -1;
+    /** weight of tiles invalidated by a local repair, before they are reached again */
+    static final int invalidated = Integer.MAX_VALUE;
+
+    /** If true, tile changes repair flow fields locally instead of re-flooding the whole map. */
+    public static boolean incrementalRepair = true;
+    /** Repairs that invalidate more than this fraction of the map fall back to a full update. */
+    public static float maxRepairFraction = 0.25f;
+    /** If true, new flow fields store weights in lazily allocated chunks of 16-bit values, widened where needed, instead of flat int arrays. */
+    public static boolean compactFields = false;
+    /** search IDs wrap around before reaching this, so they always fit in compact storage */
+    static final int maxSearch = 0xFFF0;
 
     public static final int
         fieldCore = 0;
@@ -75,7 +90,11 @@ public class Pathfinder implements Runnable{
     TaskQueue queue = new TaskQueue();
     /** Current pathfinding thread */
     @Nullable Thread thread;
-    IntSeq tmpArray = new IntSeq();
+    IntSeq tmpArray = new IntSeq(), changedTiles = new IntSeq();
+    /** Optional worker pool that updates flow fields in parallel; null if fields are updated on the pathfinding thread. */
+    @Nullable ExecutorService fieldExecutor;
+    /** per-field update tasks. Pathfinding thread only. */
+    ArrayList<Callable<Object>> fieldTasks = new ArrayList<>();
 
     public Pathfinder(){
         clearCache();
@@ -83,6 +102,10 @@ public class Pathfinder implements Runnable{
         Events.on(WorldLoadEvent.class, event -> {
             stop();
 
+            if(headless){
+                compactFields = Config.compactFlowfields.bool();
+            }
+
             //reset and update internal tile array
             tiles = new int[world.width() * world.height()];
             wwidth = world.width();
@@ -201,18 +224,25 @@ public class Pathfinder implements Runnable{
         stop();
         if(net.client()) return;
 
+        int threads = headless ? Config.pathfinderThreads.num() : 1;
+        fieldExecutor = threads > 1 ? Threads.executor("Pathfinder Worker", threads) : null;
+
         thread = new Thread(this, "Pathfinder");
         thread.setPriority(Thread.MIN_PRIORITY);
         thread.setDaemon(true);
         thread.start();
     }
 
-    /** Stops the pathfinding thread. */
+    /** Stops the pathfinding thread and its workers. */
     private void stop(){
         if(thread != null){
             thread.interrupt();
             thread = null;
         }
+        if(fieldExecutor != null){
+            fieldExecutor.shutdownNow();
+            fieldExecutor = null;
+        }
         queue.clear();
     }
 
@@ -221,10 +251,19 @@ public class Pathfinder implements Runnable{
     public void updateTile(Tile tile){
         if(net.client()) return;
 
+        changedTiles.clear();
+
         tile.getLinkedTiles(t -> {
             int pos = t.array();
             if(pos < tiles.length){
                 tiles[pos] = packTile(t);
+                changedTiles.add(pos);
+
+                //packing may change the near-solid flags of adjacent tiles, and with them their cost
+                for(int i = 0; i < 4; i++){
+                    Tile other = t.nearby(i);
+                    if(other != null) changedTiles.add(other.array());
+                }
             }
         });
 
@@ -232,15 +271,29 @@ public class Pathfinder implements Runnable{
         for(Flowfield path : mainList){
             if(path != null){
                 synchronized(path.targets){
+                    tmpArray.clear();
+                    tmpArray.addAll(path.targets);
                     path.updateTargetPositions();
+
+                    //a change in targets invalidates the whole field
+                    if(!tmpArray.equals(path.targets)){
+                        path.targetsChanged = true;
+                    }
                 }
             }
         }
 
-        //mark every flow field as dirty, so it updates when it's done
+        int[] changed = changedTiles.toArray();
+
+        //repair every flow field locally, or mark it as dirty so it updates from scratch when it's done
         queue.post(() -> {
             for(Flowfield data : threadList){
-                data.dirty = true;
+                if(incrementalRepair && !data.targetsChanged && !data.dirty){
+                    data.changes.addAll(changed);
+                }else{
+                    data.targetsChanged = false;
+                    data.dirty = true;
+                }
             }
         });
     }
@@ -255,16 +308,27 @@ public class Pathfinder implements Runnable{
                 if(state.isPlaying()){
                     queue.run();
 
-                    //each update time (not total!) no longer than maxUpdate
-                    for(Flowfield data : threadList){
-
-                        //if it's dirty and there is nothing to update, begin updating once more
-                        if(data.dirty && data.frontier.size == 0){
-                            updateTargets(data);
-                            data.dirty = false;
+                    ExecutorService executor = fieldExecutor;
+                    if(executor != null && threadList.size > 1){
+                        //each field has its own worker; fields share no mutable state, and the queue only runs between batches
+                        fieldTasks.clear();
+                        for(Flowfield data : threadList){
+                            if(data.updateTask == null){
+                                data.updateTask = () -> {
+                                    updateField(data);
+                                    return null;
+                                };
+                            }
+                            fieldTasks.add(data.updateTask);
                         }
 
-                        updateFrontier(data, maxUpdate);
+                        for(var future : executor.invokeAll(fieldTasks)){
+                            future.get();
+                        }
+                    }else{
+                        for(Flowfield data : threadList){
+                            updateField(data);
+                        }
                     }
                 }
 
@@ -274,12 +338,29 @@ public class Pathfinder implements Runnable{
                     //stop looping when interrupted externally
                     return;
                 }
+            }catch(InterruptedException e){
+                //interrupted while waiting for field workers
+                return;
             }catch(Throwable e){
                 e.printStackTrace();
             }
         }
     }
 
+    /** Updates a single flow field, each update time (not total!) no longer than maxUpdate. Pathfinding thread or field worker only. */
+    private void updateField(Flowfield data){
+        //if it's dirty and there is nothing to update, begin updating once more
+        if(data.dirty && data.frontier.size == 0){
+            updateTargets(data);
+            data.dirty = false;
+            data.changes.clear();
+        }else if(data.changes.size > 0 && data.frontier.size == 0){
+            repair(data);
+        }
+
+        updateFrontier(data, maxUpdate);
+    }
+
     public Flowfield getField(Team team, int costType, int fieldType){
         if(cache[team.id][costType][fieldType] == null){
             Flowfield field = fieldTypes.get(fieldType).get();
@@ -322,9 +403,9 @@ public class Pathfinder implements Runnable{
         }
 
         //use complete weights if possible; these contain a complete flow field that is not being updated
-        int[] values = path.hasComplete ? path.completeWeights : path.weights;
+        FieldWeights values = path.hasComplete ? path.completeWeights : path.weights;
         int apos = tile.array();
-        int value = values[apos];
+        int value = values.get(apos);
 
         Tile current = null;
         int tl = 0;
@@ -336,10 +417,12 @@ public class Pathfinder implements Runnable{
 
             int packed = world.packArray(dx, dy);
 
-            if(values[packed] < value && (current == null || values[packed] < tl) && path.passable(packed) &&
+            int otherValue = values.get(packed);
+
+            if(otherValue < value && (current == null || otherValue < tl) && path.passable(packed) &&
             !(point.x != 0 && point.y != 0 && (!path.passable(world.packArray(tile.x + point.x, tile.y)) || !path.passable(world.packArray(tile.x, tile.y + point.y))))){ //diagonal corner trap
                 current = other;
-                tl = values[packed];
+                tl = otherValue;
             }
         }
 
@@ -354,16 +437,142 @@ public class Pathfinder implements Runnable{
         //increment search, but do not clear the frontier
         path.search++;
 
+        //wrap around; forgetting old search IDs only means that every tile gets revisited by this search
+        if(path.search >= maxSearch){
+            path.searches.clear();
+            path.search = 1;
+        }
+
         synchronized(path.targets){
             //add targets
             for(int i = 0; i < path.targets.size; i++){
                 int pos = path.targets.get(i);
 
-                path.weights[pos] = 0;
-                path.searches[pos] = path.search;
+                path.weights.set(pos, 0);
+                path.searches.set(pos, path.search);
+                path.frontier.addFirst(pos);
+            }
+        }
+    }
+
+    /**
+     * Locally repairs a complete flow field after the costs of {@link Flowfield#changes} have changed.
+     * All tiles whose weight was derived from a changed tile are invalidated, re-seeded from their valid neighbours,
+     * and then re-propagated through the frontier like a regular search. Only that region is touched.
+     * Falls back to a full update if the region becomes too large. Pathfinding thread only.
+     */
+    private void repair(Flowfield path){
+        FieldWeights weights = path.weights, searches = path.searches;
+        int team = path.team.id, search = path.search;
+        IntSeq changes = path.changes, region = path.repairRegion;
+        IntQueue queue = path.repairQueue;
+        int limit = (int)(tiles.length * maxRepairFraction);
+
+        region.clear();
+        queue.clear();
+
+        //invalidate changed tiles; targets always keep a weight of 0
+        for(int i = 0; i < changes.size; i++){
+            int pos = changes.items[i];
+            int weight = weights.get(pos);
+            if(weight == 0 || weight == invalidated) continue;
+
+            weights.set(pos, invalidated);
+            region.add(pos);
+            //tiles that were not reached by the current search have no dependents
+            if(searches.get(pos) == search && weight != impassable){
+                queue.addLast(pos);
+                queue.addLast(weight);
+            }
+        }
+
+        changes.clear();
+
+        //invalidate everything downstream: tiles whose weight came from an invalidated tile
+        while(queue.size > 0){
+            int pos = queue.removeFirst(), weight = queue.removeFirst();
+            int x = pos % wwidth, y = pos / wwidth;
+
+            for(Point2 point : Geometry.d4){
+                int dx = x + point.x, dy = y + point.y;
+                if(dx < 0 || dy < 0 || dx >= wwidth || dy >= wheight) continue;
+
+                int other = pos + point.x + point.y * wwidth;
+                int otherWeight = weights.get(other);
+                if(otherWeight == invalidated || otherWeight == 0 || searches.get(other) != search) continue;
+
+                int otherCost = path.cost.getCost(team, tiles[other]);
+                if(otherCost != impassable && otherWeight == weight + otherCost){
+                    weights.set(other, invalidated);
+                    region.add(other);
+                    queue.addLast(other);
+                    queue.addLast(otherWeight);
+                }
+            }
+
+            if(region.size > limit){
+                //too much of the map is affected; restore a usable state and flood everything again
+                for(int i = 0; i < region.size; i++){
+                    weights.set(region.items[i], impassable);
+                }
+                region.clear();
+                queue.clear();
+                path.dirty = true;
+                return;
+            }
+        }
+
+        //seed each invalidated tile from its best valid neighbour; the frontier spreads the rest
+        for(int i = 0; i < region.size; i++){
+            int pos = region.items[i];
+            int cost = path.cost.getCost(team, tiles[pos]);
+            if(cost == impassable) continue;
+
+            int x = pos % wwidth, y = pos / wwidth;
+            int best = invalidated;
+
+            for(Point2 point : Geometry.d4){
+                int dx = x + point.x, dy = y + point.y;
+                if(dx < 0 || dy < 0 || dx >= wwidth || dy >= wheight) continue;
+
+                int other = pos + point.x + point.y * wwidth;
+                int otherWeight = weights.get(other);
+                if(otherWeight == invalidated || otherWeight == impassable || searches.get(other) != search) continue;
+                //impassable tiles never propagate weights, unless they are targets
+                if(otherWeight != 0 && path.cost.getCost(team, tiles[other]) == impassable) continue;
+
+                best = Math.min(best, otherWeight + cost);
+            }
+
+            if(best != invalidated){
+                weights.set(pos, best);
+                searches.set(pos, search);
                 path.frontier.addFirst(pos);
             }
         }
+
+        //nothing could be seeded, so the frontier will not finish by itself
+        if(path.frontier.size == 0){
+            finishRepair(path);
+            path.completeWeights.set(path.weights);
+            path.hasComplete = true;
+            path.completions++;
+        }
+    }
+
+    /** Marks tiles left unreachable after a repair as impassable. */
+    private void finishRepair(Flowfield path){
+        IntSeq region = path.repairRegion;
+        for(int i = 0; i < region.size; i++){
+            int pos = region.items[i];
+            if(path.weights.get(pos) == invalidated){
+                path.weights.set(pos, impassable);
+            }
+        }
+        region.clear();
+
+        //invalidated weights do not fit in compact chunks, which are widened while the repair runs
+        path.weights.compact();
     }
 
     private void preloadPath(Flowfield path){
@@ -387,14 +596,13 @@ public class Pathfinder implements Runnable{
         Core.app.post(() -> mainList.add(path));
 
         //fill with impassables by default
-        for(int i = 0; i < tiles.length; i++){
-            path.weights[i] = impassable;
-        }
+        path.weights.clear();
 
         //add targets
         for(int i = 0; i < path.targets.size; i++){
             int pos = path.targets.get(i);
-            path.weights[pos] = 0;
+            path.weights.set(pos, 0);
+            path.searches.set(pos, path.search);
             path.frontier.addFirst(pos);
         }
     }
@@ -408,8 +616,9 @@ public class Pathfinder implements Runnable{
 
         while(path.frontier.size > 0){
             int tile = path.frontier.removeLast();
-            if(path.weights == null) return; //something went horribly wrong, bail
-            int cost = path.weights[tile];
+            FieldWeights weights = path.weights, searches = path.searches;
+            if(weights == null) return; //something went horribly wrong, bail
+            int cost = weights.get(tile);
 
             //pathfinding overflowed for some reason, time to bail. the next block update will handle this, hopefully
             if(path.frontier.size >= world.width() * world.height()){
@@ -427,10 +636,10 @@ public class Pathfinder implements Runnable{
                     int newPos = tile + point.x + point.y * wwidth;
                     int otherCost = path.cost.getCost(path.team.id, tiles[newPos]);
 
-                    if((path.weights[newPos] > cost + otherCost || path.searches[newPos] < path.search) && otherCost != impassable){
+                    if(otherCost != impassable && (weights.get(newPos) > cost + otherCost || searches.get(newPos) < path.search)){
                         path.frontier.addFirst(newPos);
-                        path.weights[newPos] = cost + otherCost;
-                        path.searches[newPos] = (short)path.search;
+                        weights.set(newPos, cost + otherCost);
+                        searches.set(newPos, path.search);
                     }
                 }
             }
@@ -446,8 +655,10 @@ public class Pathfinder implements Runnable{
 
         //there WERE some things in the frontier, but now they are gone, so the path is done; copy over latest data
         if(hadAny && path.frontier.size == 0){
-            System.arraycopy(path.weights, 0, path.completeWeights, 0, path.weights.length);
+            finishRepair(path);
+            path.completeWeights.set(path.weights);
             path.hasComplete = true;
+            path.completions++;
         }
     }
 
@@ -494,20 +705,32 @@ public class Pathfinder implements Runnable{
         protected PathCost cost = costTypes.get(costGround);
         /** Whether there are valid weights in the complete array. */
         protected volatile boolean hasComplete;
+        /** How many times the complete weights were updated. Only written by the pathfinding thread. */
+        public volatile int completions;
         /** If true, this flow field needs updating. This flag is only set to false once the flow field finishes and the weights are copied over. */
         protected boolean dirty = false;
+        /** If true, the target positions changed since the last tile update, so a local repair is not possible. */
+        volatile boolean targetsChanged;
 
         /** costs of getting to a specific tile */
-        public int[] weights;
+        public FieldWeights weights;
         /** search IDs of each position - the highest, most recent search is prioritized and overwritten */
-        public int[] searches;
+        public FieldWeights searches;
         /** the last "complete" weights of this tilemap. */
-        public int[] completeWeights;
+        public FieldWeights completeWeights;
 
         /** search frontier, these are Pos objects */
         IntQueue frontier = new IntQueue();
         /** all target positions; these positions have a cost of 0, and must be synchronized on! */
         final IntSeq targets = new IntSeq();
+        /** positions whose cost changed and that await a local repair. Pathfinding thread only. */
+        final IntSeq changes = new IntSeq();
+        /** positions invalidated by the current repair. Pathfinding thread only. */
+        final IntSeq repairRegion = new IntSeq();
+        /** task that updates this field on a worker; created once by the pathfinding thread. */
+        @Nullable Callable<Object> updateTask;
+        /** invalidation queue for repairs, as (position, old weight) pairs. Pathfinding thread only. */
+        final IntQueue repairQueue = new IntQueue();
         /** current search ID */
         int search = 1;
         /** last updated time */
@@ -516,9 +739,9 @@ public class Pathfinder implements Runnable{
         boolean initialized;
 
         void setup(int length){
-            this.weights = new int[length];
-            this.searches = new int[length];
-            this.completeWeights = new int[length];
+            this.weights = FieldWeights.create(length, impassable);
+            this.searches = FieldWeights.create(length, 0);
+            this.completeWeights = FieldWeights.create(length, impassable);
             this.frontier.ensureCapacity((length) / 4);
             this.initialized = true;
         }
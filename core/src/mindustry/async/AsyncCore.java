@@ -15,10 +15,16 @@ public class AsyncCore{
         new PhysicsProcess()
     );
 
-    //futures to be awaited
-    private final Seq<Future<?>> futures = new Seq<>();
+    //processes grouped by stage; processes in the same stage have no conflicting dependencies
+    private ProcessTask[][] stages = {};
+    private ProcessTask[] tasks = {};
+    //last measured time of each stage, in nanoseconds
+    private long[] stageTimes = {};
 
-    private ExecutorService executor;
+    //future of the stage runner to be awaited
+    private @Nullable Future<?> future;
+
+    private ForkJoinPool executor;
 
     public AsyncCore(){
         Events.on(WorldLoadEvent.class, e -> {
@@ -43,23 +49,30 @@ public class AsyncCore{
                 p.begin();
             }
 
-            futures.clear();
+            //rebuild stages for potentially-modified process list
+            if(!stagesValid()){
+                buildStages();
+            }
 
-            //init executor with size of potentially-modified process list
             if(executor == null){
-                executor = Executors.newFixedThreadPool(processes.size, r -> {
-                    Thread thread = new Thread(r, "AsyncLogic-Thread");
+                executor = new ForkJoinPool(OS.cores, pool -> {
+                    var thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setName("AsyncLogic-Thread-" + thread.getPoolIndex());
                     thread.setDaemon(true);
-                    thread.setUncaughtExceptionHandler((t, e) -> Threads.throwAppException(e));
                     return thread;
-                });
+                }, (t, e) -> Threads.throwAppException(e), false);
             }
 
-            //submit all tasks
-            for(AsyncProcess p : processes){
-                if(p.shouldProcess()){
-                    futures.add(executor.submit(p::process));
-                }
+            boolean any = false;
+            for(var task : tasks){
+                task.active = task.process.shouldProcess();
+                task.nanos = 0;
+                any |= task.active;
+            }
+
+            //stages run in order; processes within a stage are forked and may be stolen by idle workers
+            if(any){
+                future = executor.submit(this::runStages);
             }
         }
     }
@@ -75,17 +88,133 @@ public class AsyncCore{
         }
     }
 
+    /** @return the time the last frame spent in the specified stage, in nanoseconds. */
+    public long stageTime(int stage){
+        return stageTimes[stage];
+    }
+
+    /** @return the number of dependency stages. */
+    public int stages(){
+        return stages.length;
+    }
+
+    /** @return a human-readable report of the last frame's stage and process timings. */
+    public String timingReport(){
+        var out = new StringBuilder();
+        for(int i = 0; i < stages.length; i++){
+            out.append("Stage ").append(i).append(": ").append(Strings.fixed(stageTimes[i] / 1000000f, 3)).append("ms\n");
+            for(var task : stages[i]){
+                out.append("  ").append(task.process.name()).append(": ")
+                    .append(task.active ? Strings.fixed(task.nanos / 1000000f, 3) + "ms" : "skipped").append("\n");
+            }
+        }
+        return out.toString();
+    }
+
+    private void runStages(){
+        for(int i = 0; i < stages.length; i++){
+            long start = Time.nanos();
+            var stage = stages[i];
+
+            for(var task : stage){
+                task.reinitialize();
+            }
+
+            if(stage.length == 1){
+                stage[0].invoke();
+            }else{
+                ForkJoinTask.invokeAll(stage);
+            }
+
+            stageTimes[i] = Time.timeSinceNanos(start);
+        }
+    }
+
+    /** @return whether the stages were built for the current processes, in the same order and with the same resources. */
+    private boolean stagesValid(){
+        if(tasks.length != processes.size) return false;
+
+        for(int i = 0; i < tasks.length; i++){
+            var task = tasks[i];
+            var process = processes.get(i);
+            if(task.process != process || task.reads != process.reads() || task.writes != process.writes()) return false;
+        }
+        return true;
+    }
+
+    /** Assigns each process to the earliest stage after all preceding processes it conflicts with. */
+    private void buildStages(){
+        complete();
+
+        tasks = new ProcessTask[processes.size];
+        int[] stageOf = new int[processes.size];
+        int stageCount = 0;
+
+        for(int i = 0; i < processes.size; i++){
+            var process = processes.get(i);
+            int stage = 0;
+            for(int j = 0; j < i; j++){
+                if(conflicts(process, processes.get(j))){
+                    stage = Math.max(stage, stageOf[j] + 1);
+                }
+            }
+            stageOf[i] = stage;
+            stageCount = Math.max(stageCount, stage + 1);
+            tasks[i] = new ProcessTask(process);
+        }
+
+        var grouped = new Seq<Seq<ProcessTask>>();
+        for(int i = 0; i < stageCount; i++){
+            grouped.add(new Seq<>());
+        }
+        for(int i = 0; i < tasks.length; i++){
+            grouped.get(stageOf[i]).add(tasks[i]);
+        }
+
+        stages = new ProcessTask[stageCount][];
+        for(int i = 0; i < stageCount; i++){
+            stages[i] = grouped.get(i).toArray(ProcessTask.class);
+        }
+        stageTimes = new long[stageCount];
+    }
+
+    private static boolean conflicts(AsyncProcess a, AsyncProcess b){
+        return (a.writes() & (b.reads() | b.writes())) != 0 || (b.writes() & a.reads()) != 0;
+    }
+
     private void complete(){
         //wait for all threads to stop processing
-        for(var future : futures){
+        if(future != null){
             try{
                 future.get();
             }catch(Throwable t){
                 throw new RuntimeException(t);
+            }finally{
+                future = null;
             }
         }
+    }
+
+    private static class ProcessTask extends RecursiveAction{
+        final AsyncProcess process;
+        //resources of the process when the stages were built
+        final int reads, writes;
+        boolean active;
+        long nanos;
+
+        ProcessTask(AsyncProcess process){
+            this.process = process;
+            this.reads = process.reads();
+            this.writes = process.writes();
+        }
 
-        //clear processed futures
-        futures.clear();
+        @Override
+        protected void compute(){
+            if(!active) return;
+
+            long start = Time.nanos();
+            process.process();
+            nanos = Time.timeSinceNanos(start);
+        }
     }
 }
@@ -1,6 +1,16 @@
 package mindustry.async;
 
 public interface AsyncProcess{
+    /** Resource flags for {@link #reads()} and {@link #writes()}. */
+    int
+    resUnits = 1,
+    resBuildings = 1 << 1,
+    resTiles = 1 << 2,
+    resBullets = 1 << 3,
+    resTeams = 1 << 4,
+    resPhysics = 1 << 5,
+    resPathfinding = 1 << 6,
+    resAll = -1;
 
     /** Sync. Called when the world loads. */
     default void init(){}
@@ -20,4 +30,19 @@ public interface AsyncProcess{
     default boolean shouldProcess(){
         return true;
     }
+
+    /** @return bitmask of resources read in {@link #process()}. Processes only run concurrently if neither writes what the other uses. */
+    default int reads(){
+        return resAll;
+    }
+
+    /** @return bitmask of resources written in {@link #process()}. */
+    default int writes(){
+        return resAll;
+    }
+
+    /** @return name used in timing reports. */
+    default String name(){
+        return getClass().getSimpleName();
+    }
 }
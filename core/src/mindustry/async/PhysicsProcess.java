@@ -1,5 +1,6 @@
 package mindustry.async;
 
+import arc.func.*;
 import arc.math.*;
 import arc.math.geom.*;
 import arc.math.geom.QuadTree.*;
@@ -9,6 +10,9 @@ import mindustry.async.PhysicsProcess.PhysicsWorld.*;
 import mindustry.entities.*;
 import mindustry.gen.*;
 
+import java.util.*;
+import java.util.concurrent.*;
+
 public class PhysicsProcess implements AsyncProcess{
     public static final int
     layers = 3,
@@ -20,6 +24,8 @@ public class PhysicsProcess implements AsyncProcess{
     private Seq<PhysicRef> refs = new Seq<>(false);
     //currently only enabled for units
     private EntityGroup<Unit> group = Groups.unit;
+    /** If true, new worlds use the uniform grid broadphase instead of quadtrees. */
+    public boolean gridBroadphase = true;
 
     @Override
     public void begin(){
@@ -92,6 +98,16 @@ public class PhysicsProcess implements AsyncProcess{
         }
     }
 
+    @Override
+    public int reads(){
+        return resPhysics;
+    }
+
+    @Override
+    public int writes(){
+        return resPhysics;
+    }
+
     @Override
     public void reset(){
         if(physics != null){
@@ -104,7 +120,7 @@ public class PhysicsProcess implements AsyncProcess{
     public void init(){
         reset();
 
-        physics = new PhysicsWorld(Vars.world.getQuadBounds(new Rect()));
+        physics = new PhysicsWorld(Vars.world.getQuadBounds(new Rect()), gridBroadphase);
     }
 
     public static class PhysicRef{
@@ -122,28 +138,101 @@ public class PhysicsProcess implements AsyncProcess{
     public static class PhysicsWorld{
         //how much to soften movement by
         private static final float scl = 1.25f;
+        //size of a broadphase grid cell, in world units
+        private static final float cellSize = 32f;
 
-        private final QuadTree<PhysicsBody>[] trees = new QuadTree[layers];
         private final Seq<PhysicsBody> bodies = new Seq<>(false, 16, PhysicsBody.class);
-        private final Seq<PhysicsBody> seq = new Seq<>(PhysicsBody.class);
-        private final Rect rect = new Rect();
         private final Vec2 vec = new Vec2();
+        private final Intc2 union = this::union;
+        //minimum number of bodies solved by a single island task
+        private static final int islandTaskSize = 256;
+
+        /** Whether this world uses the uniform grid broadphase instead of quadtrees. */
+        public final boolean grid;
+        /** If true, grid islands are solved concurrently when updating inside a fork-join pool. Results do not depend on this. */
+        public boolean parallel = true;
+
+        //quadtree broadphase
+        private QuadTree<PhysicsBody>[] trees;
+        private Seq<PhysicsBody> seq;
+        private Rect rect;
+
+        //grid broadphase; body state is mirrored into flat arrays, indexed by PhysicsBody#index
+        private float[] xs = {}, ys = {}, radii = {}, masses = {};
+        private int[] bodyLayers = {}, cells = {}, next = {}, prev = {};
+        private boolean[] locals = {}, collided = {};
+        //island partitioning; see buildIslands
+        private int[] parent = {}, island = {}, order = {}, cursor = {}, islandStart = {0};
+        //first body index of each cell, or -1; laid out as [layer][y][x]
+        private int[] heads;
+        private int gridW, gridH;
+        private float originX, originY;
 
         public PhysicsWorld(Rect bounds){
-            for(int i = 0; i < layers; i++){
-                trees[i] = new QuadTree<>(new Rect(bounds));
+            this(bounds, false);
+        }
+
+        public PhysicsWorld(Rect bounds, boolean grid){
+            this.grid = grid;
+
+            if(grid){
+                originX = bounds.x;
+                originY = bounds.y;
+                gridW = Math.max(Mathf.ceil(bounds.width / cellSize), 1);
+                gridH = Math.max(Mathf.ceil(bounds.height / cellSize), 1);
+                heads = new int[layers * gridW * gridH];
+                Arrays.fill(heads, -1);
+                ensureCapacity(16);
+            }else{
+                trees = new QuadTree[layers];
+                seq = new Seq<>(PhysicsBody.class);
+                rect = new Rect();
+                for(int i = 0; i < layers; i++){
+                    trees[i] = new QuadTree<>(new Rect(bounds));
+                }
             }
         }
 
         public void add(PhysicsBody body){
+            body.index = bodies.size;
             bodies.add(body);
+
+            if(grid){
+                ensureCapacity(bodies.size);
+                cells[body.index] = -1;
+            }
         }
 
         public void remove(PhysicsBody body){
-            bodies.remove(body);
+            int index = body.index;
+            if(index < 0 || index >= bodies.size || bodies.items[index] != body) return;
+
+            int last = bodies.size - 1;
+
+            if(grid){
+                unlink(index);
+                //the last body is swapped into this slot, so it gets re-linked under its new index on the next update
+                if(index != last){
+                    unlink(last);
+                }
+            }
+
+            bodies.remove(index);
+            body.index = -1;
+            if(index < bodies.size){
+                bodies.items[index].index = index;
+            }
         }
 
         public void update(){
+            if(grid){
+                updateGrid();
+            }else{
+                updateTrees();
+            }
+        }
+
+        private void updateTrees(){
             for(int i = 0; i < layers; i++){
                 trees[i].clear();
             }
@@ -197,10 +286,294 @@ public class PhysicsProcess implements AsyncProcess{
             }
         }
 
+        /**
+         * Calls {@code cons} with the indices of every pair of bodies that overlap and may collide, as found by the grid broadphase.
+         * The lower index is passed first. Only supported by worlds that use the grid.
+         */
+        public void eachOverlap(Intc2 cons){
+            if(!grid) throw new IllegalStateException("Only the grid broadphase can list overlaps.");
+
+            eachOverlap(bodies.size, syncGrid(), cons);
+        }
+
+        private void updateGrid(){
+            var bodyItems = bodies.items;
+            int bodySize = bodies.size;
+            float maxRadius = syncGrid();
+
+            int islandCount = buildIslands(bodySize, maxRadius);
+
+            //islands share no bodies, so they can be solved in any order or concurrently with identical results
+            if(islandCount > 0){
+                if(parallel && ForkJoinTask.inForkJoinPool() && bodySize >= islandTaskSize * 2){
+                    var tasks = new Seq<IslandTask>(IslandTask.class);
+                    int from = 0;
+                    for(int k = 0; k < islandCount; k++){
+                        if(islandStart[k + 1] - islandStart[from] >= islandTaskSize || k == islandCount - 1){
+                            tasks.add(new IslandTask(from, k + 1, maxRadius));
+                            from = k + 1;
+                        }
+                    }
+                    ForkJoinTask.invokeAll(tasks.toArray());
+                }else{
+                    solveIslands(0, islandCount, maxRadius);
+                }
+            }
+
+            for(int i = 0; i < bodySize; i++){
+                PhysicsBody body = bodyItems[i];
+                body.x = xs[i];
+                body.y = ys[i];
+            }
+        }
+
+        /**
+         * Groups bodies that overlap at the start of the step into islands, using union-find over grid neighbours.
+         * Islands are numbered in order of their lowest body index, and members are stored in ascending index order.
+         * Bodies that overlap nothing are not part of any island and are skipped by the solver.
+         * @return the number of islands
+         */
+        private int buildIslands(int bodySize, float maxRadius){
+            for(int i = 0; i < bodySize; i++){
+                parent[i] = i;
+                island[i] = -1;
+            }
+
+            eachOverlap(bodySize, maxRadius, union);
+
+            //count members; roots always precede their members, so islands are numbered in ascending order of their root
+            int islandCount = 0;
+            for(int i = 0; i < bodySize; i++){
+                int root = find(i);
+                if(root != i){
+                    if(island[root] == -1){
+                        island[root] = islandCount++;
+                        //root counts as a member
+                        islandStart[island[root]] = 1;
+                    }
+                    island[i] = island[root];
+                    islandStart[island[i]]++;
+                }
+            }
+
+            //prefix sums into start offsets, then place members in ascending index order
+            int offset = 0;
+            for(int k = 0; k < islandCount; k++){
+                int count = islandStart[k];
+                islandStart[k] = offset;
+                offset += count;
+            }
+            islandStart[islandCount] = offset;
+
+            for(int k = 0; k < islandCount; k++){
+                cursor[k] = islandStart[k];
+            }
+
+            for(int i = 0; i < bodySize; i++){
+                if(island[i] != -1){
+                    order[cursor[island[i]]++] = i;
+                }
+            }
+
+            return islandCount;
+        }
+
+        /** Copies body state and moves bodies whose cell changed; bodies that stay in their cell are not touched. */
+        private float syncGrid(){
+            var bodyItems = bodies.items;
+            int bodySize = bodies.size;
+            float maxRadius = 0f;
+
+            for(int i = 0; i < bodySize; i++){
+                PhysicsBody body = bodyItems[i];
+                xs[i] = body.x;
+                ys[i] = body.y;
+                radii[i] = body.radius;
+                masses[i] = body.mass;
+                locals[i] = body.local;
+                collided[i] = false;
+                maxRadius = Math.max(maxRadius, body.radius);
+
+                int cell = cell(body.layer, cellX(body.x), cellY(body.y));
+                if(cell != cells[i]){
+                    unlink(i);
+                    bodyLayers[i] = body.layer;
+                    link(i, cell);
+                }
+            }
+
+            return maxRadius;
+        }
+
+        private void eachOverlap(int bodySize, float maxRadius, Intc2 cons){
+            for(int i = 0; i < bodySize; i++){
+                float range = radii[i] + maxRadius;
+                int minx = cellX(xs[i] - range), maxx = cellX(xs[i] + range);
+                int miny = cellY(ys[i] - range), maxy = cellY(ys[i] + range);
+                int layer = bodyLayers[i];
+
+                for(int cy = miny; cy <= maxy; cy++){
+                    for(int cx = minx; cx <= maxx; cx++){
+                        for(int j = heads[cell(layer, cx, cy)]; j != -1; j = next[j]){
+                            //two non-local bodies never interact
+                            if(j <= i || (!locals[i] && !locals[j])) continue;
+
+                            if(Mathf.dst(xs[i], ys[i], xs[j], ys[j]) < radii[i] + radii[j]){
+                                cons.get(i, j);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        private void union(int i, int j){
+            int ri = find(i), rj = find(j);
+            //the lower index is always the root, so numbering does not depend on union order
+            if(ri < rj){
+                parent[rj] = ri;
+            }else if(rj < ri){
+                parent[ri] = rj;
+            }
+        }
+
+        private int find(int i){
+            while(parent[i] != i){
+                parent[i] = parent[parent[i]];
+                i = parent[i];
+            }
+            return i;
+        }
+
+        /** Solves islands in [from, to). Only touches bodies of those islands. */
+        private void solveIslands(int from, int to, float maxRadius){
+            for(int o = islandStart[from]; o < islandStart[to]; o++){
+                int i = order[o];
+
+                //for clients, the only body that collides is the local one; all other physics simulations are handled by the server.
+                if(!locals[i]) continue;
+
+                float range = radii[i] + maxRadius;
+                int minx = cellX(xs[i] - range), maxx = cellX(xs[i] + range);
+                int miny = cellY(ys[i] - range), maxy = cellY(ys[i] + range);
+                int layer = bodyLayers[i], own = island[i];
+
+                for(int cy = miny; cy <= maxy; cy++){
+                    for(int cx = minx; cx <= maxx; cx++){
+                        for(int j = heads[cell(layer, cx, cy)]; j != -1; j = next[j]){
+                            if(j == i || island[j] != own || collided[j]) continue;
+
+                            float rs = radii[i] + radii[j];
+                            float dst = Mathf.dst(xs[i], ys[i], xs[j], ys[j]);
+
+                            if(dst < rs){
+                                //equivalent to Vec2#setLength, without shared state
+                                float dx = xs[i] - xs[j], dy = ys[i] - ys[j], len2 = dx * dx + dy * dy, target = rs - dst;
+                                if(len2 != 0 && len2 != target * target){
+                                    float s = (float)Math.sqrt(target * target / len2);
+                                    dx *= s;
+                                    dy *= s;
+                                }
+
+                                float ms = masses[i] + masses[j];
+                                float m1 = masses[j] / ms, m2 = masses[i] / ms;
+
+                                xs[i] += dx * m1 / scl;
+                                ys[i] += dy * m1 / scl;
+
+                                if(locals[j]){
+                                    xs[j] -= dx * m2 / scl;
+                                    ys[j] -= dy * m2 / scl;
+                                }
+                            }
+                        }
+                    }
+                }
+                collided[i] = true;
+            }
+        }
+
+        private int cellX(float x){
+            return Mathf.clamp((int)((x - originX) / cellSize), 0, gridW - 1);
+        }
+
+        private int cellY(float y){
+            return Mathf.clamp((int)((y - originY) / cellSize), 0, gridH - 1);
+        }
+
+        private int cell(int layer, int cx, int cy){
+            return (layer * gridH + cy) * gridW + cx;
+        }
+
+        private void link(int index, int cell){
+            int head = heads[cell];
+            next[index] = head;
+            prev[index] = -1;
+            if(head != -1) prev[head] = index;
+            heads[cell] = index;
+            cells[index] = cell;
+        }
+
+        private void unlink(int index){
+            int cell = cells[index];
+            if(cell == -1) return;
+
+            if(prev[index] != -1){
+                next[prev[index]] = next[index];
+            }else{
+                heads[cell] = next[index];
+            }
+            if(next[index] != -1){
+                prev[next[index]] = prev[index];
+            }
+            cells[index] = -1;
+        }
+
+        private void ensureCapacity(int size){
+            if(xs.length >= size) return;
+
+            int cap = Math.max(size, xs.length * 7 / 4);
+            int old = xs.length;
+            xs = Arrays.copyOf(xs, cap);
+            ys = Arrays.copyOf(ys, cap);
+            radii = Arrays.copyOf(radii, cap);
+            masses = Arrays.copyOf(masses, cap);
+            bodyLayers = Arrays.copyOf(bodyLayers, cap);
+            cells = Arrays.copyOf(cells, cap);
+            next = Arrays.copyOf(next, cap);
+            prev = Arrays.copyOf(prev, cap);
+            locals = Arrays.copyOf(locals, cap);
+            collided = Arrays.copyOf(collided, cap);
+            parent = new int[cap];
+            island = new int[cap];
+            order = new int[cap];
+            cursor = new int[cap];
+            islandStart = new int[cap + 1];
+            Arrays.fill(cells, old, cap, -1);
+        }
+
+        private class IslandTask extends RecursiveAction{
+            final int from, to;
+            final float maxRadius;
+
+            IslandTask(int from, int to, float maxRadius){
+                this.from = from;
+                this.to = to;
+                this.maxRadius = maxRadius;
+            }
+
+            @Override
+            protected void compute(){
+                solveIslands(from, to, maxRadius);
+            }
+        }
+
         public static class PhysicsBody implements QuadTreeObject{
             public float x, y, radius, mass;
             public int layer = 0;
             public boolean collided = false, local = true;
+            /** Index of this body in its world; -1 if not added. */
+            public int index = -1;
 
             @Override
             public void hitbox(Rect out){
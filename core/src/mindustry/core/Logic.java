@@ -291,7 +291,7 @@ public class Logic implements ApplicationListener{
                     //activate attack mode to destroy cores after waves are done.
                     state.rules.attackMode = true;
                     state.rules.waves = false;
-                    Call.setRules(state.rules);
+                    netServer.syncRules();
                 }else{
                     Call.sectorCapture();
                 }
@@ -14,14 +14,17 @@ import mindustry.*;
 import mindustry.annotations.Annotations.*;
 import mindustry.core.GameState.*;
 import mindustry.entities.*;
+import mindustry.entities.units.*;
 import mindustry.game.EventType.*;
 import mindustry.game.*;
 import mindustry.game.Teams.*;
 import mindustry.gen.*;
+import mindustry.io.*;
 import mindustry.logic.*;
 import mindustry.net.Administration.*;
 import mindustry.net.*;
 import mindustry.net.Packets.*;
+import mindustry.net.SnapshotHistory.*;
 import mindustry.world.*;
 import mindustry.world.modules.*;
 
@@ -49,12 +52,34 @@ public class NetClient implements ApplicationListener{
     private float timeoutTime = 0f;
     /** Last sent client snapshot ID. */
     private int lastSent;
+    /** IDs of build plans that have been sent to the server. IDs are never reused, so that late packets cannot be confused. */
+    private ObjectIntMap<BuildPlan> sentPlans = new ObjectIntMap<>();
+    /** Last assigned build plan ID. */
+    private int lastPlanID;
+    /** Whether the server was told that the current world has loaded. Plans sent before that are ignored by the server. */
+    private boolean worldConfirmed;
+    /** Temporary collections used when syncing build plans. */
+    private ObjectSet<BuildPlan> queuedPlans = new ObjectSet<>();
+    private Seq<BuildPlan> addedPlans = new Seq<>(BuildPlan.class);
+    private IntSeq removedPlans = new IntSeq(), planOrder = new IntSeq();
 
     /** List of entities that were removed, and need not be added while syncing. */
     private IntSet removed = new IntSet();
     /** Byte stream for reading in snapshots. */
     private ReusableByteInStream byteStream = new ReusableByteInStream();
     private DataInputStream dataStream = new DataInputStream(byteStream);
+    /** Recently received entity snapshots, used as baselines for delta snapshots. */
+    private SnapshotHistory snapshots = new SnapshotHistory();
+    /** Delta snapshot that is currently being received. */
+    private @Nullable Baseline deltaSnapshot;
+    /** Number of packets received for the current delta snapshot, and the index of its last packet, or -1 if unknown. */
+    private int deltaReceived, deltaLast = -1;
+    /** Whether the current delta snapshot could not be decoded. */
+    private boolean deltaFailed;
+    /** Buffer for the reconstructed sync data of a single entity. */
+    private byte[] recordBuffer = new byte[256];
+    private RecordStream recordStream = new RecordStream();
+    private DataInputStream recordInput = new DataInputStream(recordStream);
     /** Packet handlers for custom types of messages. */
     private ObjectMap<String, Seq<Cons<String>>> customPacketHandlers = new ObjectMap<>();
 
@@ -133,7 +158,7 @@ public class NetClient implements ApplicationListener{
 
         net.handleClient(WorldStream.class, data -> {
             Log.info("Received world data: @ bytes.", data.stream.available());
-            NetworkIO.loadWorld(new InflaterInputStream(data.stream));
+            NetworkIO.loadWorld(data.inflated ? data.stream : new InflaterInputStream(data.stream));
 
             finishConnecting();
         });
@@ -300,6 +325,21 @@ public class NetClient implements ApplicationListener{
         netClient.ping = Time.timeSinceMillis(time);
     }
 
+    /** Called when the server did not accept plans because of its limits. They are sent again with a later sync, under new IDs. */
+    @Remote(variants = Variant.one)
+    public static void clientPlansRejected(int[] ids){
+        var entries = netClient.sentPlans.entries();
+        while(entries.hasNext()){
+            var entry = entries.next();
+            for(int id : ids){
+                if(entry.value == id){
+                    entries.remove();
+                    break;
+                }
+            }
+        }
+    }
+
     @Remote(variants = Variant.one)
     public static void traceInfo(Player player, TraceInfo info){
         if(player != null){
@@ -340,6 +380,12 @@ public class NetClient implements ApplicationListener{
         state.rules = rules;
     }
 
+    /** Applies rule fields that changed, as written by {@link RulesIO}. */
+    @Remote(variants = Variant.both)
+    public static void setRuleFields(byte[] data){
+        RulesIO.read(new Reads(new DataInputStream(new ByteArrayInputStream(data))), state.rules);
+    }
+
     //NOTE: avoid using this, runs into packet/buffer size limitations
     @Remote(variants = Variant.both)
     public static void setObjectives(MapObjectives executor){
@@ -363,6 +409,9 @@ public class NetClient implements ApplicationListener{
     public static void worldDataBegin(){
         Groups.clear();
         netClient.removed.clear();
+        netClient.resetSnapshots();
+        netClient.sentPlans.clear();
+        netClient.worldConfirmed = false;
         logic.reset();
         netClient.connecting = true;
 
@@ -402,6 +451,10 @@ public class NetClient implements ApplicationListener{
         int id = input.readInt();
         byte typeID = input.readByte();
 
+        readSyncEntity(id, typeID, read);
+    }
+
+    public static void readSyncEntity(int id, byte typeID, Reads read) throws IOException{
         Syncc entity = Groups.sync.getByID(id);
         boolean add = false, created = false;
 
@@ -449,6 +502,11 @@ public class NetClient implements ApplicationListener{
         }
     }
 
+    @Remote(variants = Variant.one, priority = PacketPriority.low, unreliable = true)
+    public static void entityDeltaSnapshot(int snapshot, int baseline, short packet, boolean last, short amount, byte[] data){
+        netClient.readDeltaSnapshot(snapshot, baseline, packet, last, amount, data);
+    }
+
     @Remote(variants = Variant.one, priority = PacketPriority.low, unreliable = true)
     public static void hiddenSnapshot(IntSeq ids){
         for(int i = 0; i < ids.size; i++){
@@ -559,6 +617,74 @@ public class NetClient implements ApplicationListener{
         return connecting;
     }
 
+    void readDeltaSnapshot(int snapshot, int baseline, int packet, boolean last, int amount, byte[] data){
+        //packets of older snapshots that arrived late are superseded
+        if(deltaSnapshot != null && snapshot < deltaSnapshot.id) return;
+
+        if(deltaSnapshot == null || snapshot != deltaSnapshot.id){
+            deltaSnapshot = snapshots.begin(snapshot);
+            deltaReceived = 0;
+            deltaLast = -1;
+            deltaFailed = false;
+        }
+
+        if(deltaFailed) return;
+
+        Baseline base = snapshots.get(baseline);
+
+        try{
+            if(baseline >= 0 && (base == null || !base.complete)){
+                throw new IOException("Missing baseline snapshot " + baseline);
+            }
+
+            byteStream.setBytes(data);
+            DataInputStream input = dataStream;
+
+            for(int j = 0; j < amount; j++){
+                int id = input.readInt();
+                byte typeID = input.readByte();
+                byte type = input.readByte();
+                int length = type == SnapshotHistory.recordFull ? input.readUnsignedShort() : base == null ? -1 : base.length(id);
+
+                if(length < 0){
+                    throw new IOException("Missing baseline data for entity " + id);
+                }
+
+                if(recordBuffer.length < length){
+                    recordBuffer = new byte[Math.max(recordBuffer.length * 2, length)];
+                }
+
+                if(type == SnapshotHistory.recordFull){
+                    input.readFully(recordBuffer, 0, length);
+                }else if(type == SnapshotHistory.recordDelta){
+                    SnapshotHistory.readDelta(input, base.data(), base.offset(id), recordBuffer, length);
+                }else{
+                    System.arraycopy(base.data(), base.offset(id), recordBuffer, 0, length);
+                }
+
+                deltaSnapshot.put(id, recordBuffer, 0, length);
+
+                recordStream.set(recordBuffer, length);
+                readSyncEntity(id, typeID, Reads.get(recordInput));
+            }
+        }catch(Exception e){
+            Log.err("Error reading delta entity snapshot", e);
+
+            //everything after this relies on a baseline the server assumes to exist, so request a full snapshot
+            deltaFailed = true;
+            Call.entitySnapshotAck(-1);
+            return;
+        }
+
+        deltaReceived++;
+        if(last) deltaLast = packet;
+
+        if(deltaLast >= 0 && deltaReceived == deltaLast + 1){
+            deltaSnapshot.complete = true;
+            Call.entitySnapshotAck(snapshot);
+        }
+    }
+
     public int getPing(){
         return (int)ping;
     }
@@ -568,7 +694,10 @@ public class NetClient implements ApplicationListener{
         connecting = false;
         ui.join.hide();
         net.setClientLoaded(true);
-        Core.app.post(Call::connectConfirm);
+        Core.app.post(() -> {
+            Call.connectConfirm();
+            worldConfirmed = true;
+        });
         Time.runTask(40f, platform::updateRPC);
         Core.app.post(ui.loadfrag::hide);
     }
@@ -576,6 +705,9 @@ public class NetClient implements ApplicationListener{
     private void reset(){
         net.setClientLoaded(false);
         removed.clear();
+        resetSnapshots();
+        sentPlans.clear();
+        worldConfirmed = false;
         timeoutTime = 0f;
         connecting = true;
         quietReset = false;
@@ -586,6 +718,12 @@ public class NetClient implements ApplicationListener{
         ui.chatfrag.clearMessages();
     }
 
+    void resetSnapshots(){
+        snapshots.clear();
+        deltaSnapshot = null;
+        deltaFailed = false;
+    }
+
     public void beginConnecting(){
         connecting = true;
     }
@@ -636,7 +774,7 @@ public class NetClient implements ApplicationListener{
             unit.vel.x, unit.vel.y,
             player.unit().mineTile,
             player.boosting, player.shooting, ui.chatfrag.shown(), control.input.isBuilding,
-            player.isBuilder() ? player.unit().plans : null,
+            syncPlans(),
             Core.camera.position.x, Core.camera.position.y,
             Core.camera.width, Core.camera.height
             );
@@ -647,6 +785,63 @@ public class NetClient implements ApplicationListener{
         }
     }
 
+    /**
+     * Sends the server plans that were added to or removed from the queue since the last sync.
+     * @return the IDs of the plans the server should use, in queue order.
+     */
+    int[] syncPlans(){
+        if(!worldConfirmed) return new int[0];
+
+        Queue<BuildPlan> plans = player.isBuilder() ? player.unit().plans : null;
+
+        queuedPlans.clear();
+        addedPlans.clear();
+        removedPlans.clear();
+        planOrder.clear();
+
+        if(plans != null){
+            for(BuildPlan plan : plans){
+                queuedPlans.add(plan);
+            }
+        }
+
+        var entries = sentPlans.entries();
+        while(entries.hasNext()){
+            var entry = entries.next();
+            if(!queuedPlans.contains(entry.key)){
+                removedPlans.add(entry.value);
+                entries.remove();
+            }
+        }
+
+        int firstID = lastPlanID;
+
+        if(plans != null){
+            int used = TypeIO.getMaxPlans(plans);
+            for(int i = 0; i < used; i++){
+                BuildPlan plan = plans.get(i);
+                int id = sentPlans.get(plan, -1);
+
+                if(id == -1){
+                    //the server ignores plans beyond its limits; the rest are sent with later snapshots
+                    if(sentPlans.size >= NetServer.maxClientPlans || addedPlans.size >= NetServer.maxPlansPerPacket) continue;
+
+                    id = lastPlanID++;
+                    sentPlans.put(plan, id);
+                    addedPlans.add(plan);
+                }
+
+                planOrder.add(id);
+            }
+        }
+
+        if(addedPlans.any() || removedPlans.size > 0){
+            Call.clientPlans(firstID, addedPlans.toArray(), removedPlans.toArray());
+        }
+
+        return planOrder.toArray();
+    }
+
     String getUsid(String ip){
         //consistently use the latter part of an IP, if possible
         if(ip.contains("/")){
@@ -663,4 +858,18 @@ public class NetClient implements ApplicationListener{
             return result;
         }
     }
+
+    /** Input stream over a reusable array, for reading reconstructed entity sync data. */
+    private static class RecordStream extends ByteArrayInputStream{
+        RecordStream(){
+            super(new byte[0]);
+        }
+
+        void set(byte[] bytes, int length){
+            buf = bytes;
+            pos = 0;
+            mark = 0;
+            count = length;
+        }
+    }
 }
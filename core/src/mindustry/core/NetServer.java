@@ -18,16 +18,17 @@ import mindustry.game.EventType.*;
 import mindustry.game.Teams.*;
 import mindustry.gen.*;
 import mindustry.graphics.*;
+import mindustry.io.*;
 import mindustry.logic.*;
 import mindustry.net.*;
 import mindustry.net.Administration.*;
 import mindustry.net.Packets.*;
+import mindustry.net.SnapshotHistory.*;
 import mindustry.world.*;
 
 import java.io.*;
 import java.net.*;
 import java.nio.*;
-import java.util.zip.*;
 
 import static arc.util.Log.*;
 import static mindustry.Vars.*;
@@ -37,13 +38,32 @@ public class NetServer implements ApplicationListener{
     private static final int maxSnapshotSize = 800;
     private static final int timerBlockSync = 0, timerHealthSync = 1;
     private static final float blockSyncTime = 60 * 6, healthSyncTime = 30;
+    /**
+     * Unchanged buildings are still re-sent once every this many block syncs (48 seconds), in case a snapshot was lost.
+     * Sleeping buildings are not in the build group, and are neither serialized nor sent.
+     */
+    private static final int blockRefreshCycles = 8;
+    /** Snapshot payloads above this size are not pooled, as they are rare. */
+    private static final int maxPayloadSize = 4096;
     private static final FloatBuffer fbuffer = FloatBuffer.allocate(20);
     private static final Writes dataWrites = new Writes(null);
     private static final IntSeq hiddenIds = new IntSeq();
+    /** IDs of plans that were not accepted because of limits, which the client sends again later. */
+    private static final IntSeq rejectedPlans = new IntSeq();
+    /** IDs of units and bullets inside the relevance area of the player that is currently being synced. */
+    private static final IntSet relevantIds = new IntSet();
+    /** Center of the relevance area of the player that is currently being synced. */
+    private static final Vec2 relevantCenter = new Vec2();
     private static final IntSeq healthSeq = new IntSeq(maxSnapshotSize / 4 + 1);
     private static final Vec2 vector = new Vec2();
     /** If a player goes away of their server-side coordinates by this distance, they get teleported back. */
     private static final float correctDist = tilesize * 14f;
+    /** Maximum view size accepted from clients when determining the relevance area, so that a spoofed view cannot opt into everything. */
+    private static final float maxViewSize = tilesize * 150f;
+    /** Maximum number of build plans the server keeps for a single client. Further plans are ignored until others are removed. */
+    public static final int maxClientPlans = 1000;
+    /** Maximum number of build plans a client may add in one packet, and in one second. Further plans are ignored. */
+    public static final int maxPlansPerPacket = 50, maxPlansPerSecond = 1000;
 
     public Administration admins = new Administration();
     public CommandHandler clientCommands = new CommandHandler("/");
@@ -98,6 +118,13 @@ public class NetServer implements ApplicationListener{
     private boolean closing = false, pvpAutoPaused = true;
     private Interval timer = new Interval(10);
     private IntSet buildHealthChanged = new IntSet();
+    /** Hash of the last block snapshot data sent for each building position. */
+    private IntIntMap blockSyncHashes = new IntIntMap();
+    /** Which part of the buildings is refreshed in the next block sync. */
+    private int blockRefreshCycle;
+    /** Stream for writing the state of a single building to, before it is compared against the last sent state. */
+    private ReusableByteOutStream blockStream = new ReusableByteOutStream();
+    private DataOutputStream blockDataStream = new DataOutputStream(blockStream);
     
     /** Current kick session. */
     public @Nullable VoteSession currentlyKicking = null;
@@ -115,11 +142,42 @@ public class NetServer implements ApplicationListener{
     private ReusableByteOutStream syncStream = new ReusableByteOutStream();
     /** Data stream for writing player sync data to. */
     private DataOutputStream dataStream = new DataOutputStream(syncStream);
+    /**
+     * Snapshot payload arrays by exact length. Packets are serialized as soon as they are sent,
+     * so these can be reused by the next snapshot instead of allocating a new array for every packet.
+     */
+    private IntMap<byte[]> payloads = new IntMap<>();
+    /** Number of snapshot payloads that reused an array, and that had to allocate one. */
+    public long payloadsReused, payloadsAllocated;
+    /** Stream holding the encoded sync data of every entity for the current frame, shared by all player snapshots. */
+    private ReusableByteOutStream entityCache = new ReusableByteOutStream();
+    /** Data stream for writing to the entity cache. */
+    private DataOutputStream entityCacheStream = new DataOutputStream(entityCache);
+    /** Entities in the entity cache, in the order they were written. */
+    private Seq<Syncc> cachedEntities = new Seq<>(Syncc.class);
+    /** Start offset of each cached entity in the entity cache, followed by the end offset of the last one. */
+    private IntSeq cachedOffsets = new IntSeq();
+    /** Whether the entity cache is up to date for this frame. */
+    private boolean entityCacheValid;
+    /** Encoded rules as last sent to all clients, or null if the next sync must send all rules. */
+    private @Nullable byte[][] syncedRules;
+    /** Value of {@link RulesIO#fullWrites} after the last rule sync. */
+    private int syncedRulesWrites;
+    /** Compresses and sends world data to joining players. */
+    private WorldDataCache worldData = new WorldDataCache();
     /** Packet handlers for custom types of messages. */
     private ObjectMap<String, Seq<Cons2<Player, String>>> customPacketHandlers = new ObjectMap<>();
 
     public NetServer(){
 
+        Events.on(WorldLoadEvent.class, e -> {
+            blockSyncHashes.clear();
+            syncedRules = null;
+        });
+
+        //a building placed at the same position must always be sent, and removed buildings must not keep their hash
+        Events.on(TileChangeEvent.class, e -> blockSyncHashes.remove(e.tile.pos()));
+
         net.handleServer(Connect.class, (con, connect) -> {
             Events.fire(new ConnectionEvent(con));
 
@@ -497,14 +555,14 @@ public class NetServer implements ApplicationListener{
     }
 
     public void sendWorldData(Player player){
-        ByteArrayOutputStream stream = new ByteArrayOutputStream();
-        DeflaterOutputStream def = new FastDeflaterOutputStream(stream);
-        NetworkIO.writeWorld(player, def);
-        WorldStream data = new WorldStream();
-        data.stream = new ByteArrayInputStream(stream.toByteArray());
-        player.con.sendStream(data);
-
-        debug("Packed @ bytes of world data.", stream.size());
+        //the player receives the current rules, which may differ from what other clients were last sent
+        syncedRules = null;
+        worldData.send(player);
+        //the client discards its snapshot history when loading a world
+        player.con.lastAckedSnapshot = -1;
+        //plans from the previous world are invalid, and plans still in flight from it are ignored until the client confirms the new one
+        player.con.plans.clear();
+        player.con.worldConfirmed = false;
     }
 
     public void addPacketHandler(String type, Cons2<Player, String> handler){
@@ -587,6 +645,68 @@ public class NetServer implements ApplicationListener{
         return Float.isInfinite(f) || Float.isNaN(f);
     }
 
+    @Remote(targets = Loc.client, unreliable = true)
+    public static void entitySnapshotAck(Player player, int snapshotID){
+        NetConnection con = player.con;
+        if(con == null) return;
+
+        //negative IDs mean that the client lost its baseline, and needs a full snapshot
+        if(snapshotID < 0 || snapshotID > con.lastAckedSnapshot){
+            con.lastAckedSnapshot = snapshotID;
+        }
+    }
+
+    /**
+     * Updates the build plans of a client, which are then referenced by ID in client snapshots.
+     * Plans are only validated once, when they are added. Additions are limited by {@link #maxPlansPerPacket} and {@link #maxPlansPerSecond}.
+     * Plans over these limits are reported back to the client, so that it sends them again.
+     * @param firstID the ID of the first added plan. The others have consecutive IDs.
+     */
+    @Remote(targets = Loc.client)
+    public static void clientPlans(Player player, int firstID, @Nullable BuildPlan[] added, int[] removed){
+        NetConnection con = player.con;
+        //packets sent before the client loaded the current world refer to the previous one
+        if(con == null || added == null || !con.worldConfirmed) return;
+
+        for(int id : removed){
+            con.plans.remove(id);
+        }
+
+        rejectedPlans.clear();
+        boolean limited = false;
+
+        for(int i = 0; i < added.length; i++){
+            BuildPlan req = added[i];
+            if(req == null) continue;
+
+            if(limited || i >= maxPlansPerPacket || con.plans.size >= maxClientPlans || !con.planRate.allow(1000, maxPlansPerSecond)){
+                limited = true;
+                rejectedPlans.add(firstID + i);
+                continue;
+            }
+
+            Tile tile = world.tile(req.x, req.y);
+            if(tile == null || (!req.breaking && req.block == null)) continue;
+
+            //make sure request is allowed by the server
+            if(!netServer.admins.allowAction(player, req.breaking ? ActionType.breakBlock : ActionType.placeBlock, tile, action -> {
+                action.block = req.block;
+                action.rotation = req.rotation;
+                action.config = req.config;
+            })){
+                //force the player to remove this request if that's not the case
+                Call.removeQueueBlock(con, req.x, req.y, req.breaking);
+                continue;
+            }
+
+            con.plans.put(firstID + i, req);
+        }
+
+        if(rejectedPlans.size > 0){
+            Call.clientPlansRejected(con, rejectedPlans.toArray());
+        }
+    }
+
     @Remote(targets = Loc.client, unreliable = true)
     public static void clientSnapshot(
         Player player,
@@ -599,7 +719,7 @@ public class NetServer implements ApplicationListener{
         float xVelocity, float yVelocity,
         Tile mining,
         boolean boosting, boolean shooting, boolean chatting, boolean building,
-        @Nullable Queue<BuildPlan> plans,
+        int[] plans,
         float viewX, float viewY, float viewWidth, float viewHeight
     ){
         NetConnection con = player.con;
@@ -646,37 +766,22 @@ public class NetServer implements ApplicationListener{
             player.unit().clearBuilding();
             player.unit().updateBuilding(building);
 
-            if(plans != null){
-                for(BuildPlan req : plans){
-                    if(req == null) continue;
-                    Tile tile = world.tile(req.x, req.y);
-                    if(tile == null || (!req.breaking && req.block == null)) continue;
-                    //auto-skip done requests
-                    if(req.breaking && tile.block() == Blocks.air){
-                        continue;
-                    }else if(!req.breaking && tile.block() == req.block && (!req.block.rotate || (tile.build != null && tile.build.rotation == req.rotation))){
-                        continue;
-                    }else if(con.rejectedRequests.contains(r -> r.breaking == req.breaking && r.x == req.x && r.y == req.y)){ //check if request was recently rejected, and skip it if so
-                        continue;
-                    }else if(!netServer.admins.allowAction(player, req.breaking ? ActionType.breakBlock : ActionType.placeBlock, tile, action -> { //make sure request is allowed by the server
-                        action.block = req.block;
-                        action.rotation = req.rotation;
-                        action.config = req.config;
-                    })){
-                        //force the player to remove this request if that's not the case
-                        Call.removeQueueBlock(player.con, req.x, req.y, req.breaking);
-                        con.rejectedRequests.add(req);
-                        continue;
-                    }
-                    player.unit().plans().addLast(req);
+            for(int id : plans){
+                BuildPlan req = con.plans.get(id);
+                Tile tile = req == null ? null : req.tile();
+                if(tile == null) continue;
+                //auto-skip done requests
+                if(req.breaking && tile.block() == Blocks.air){
+                    continue;
+                }else if(!req.breaking && tile.block() == req.block && (!req.block.rotate || (tile.build != null && tile.build.rotation == req.rotation))){
+                    continue;
                 }
+                player.unit().plans().addLast(req);
             }
         }
 
         player.unit().mineTile = mining;
 
-        con.rejectedRequests.clear();
-
         if(!player.dead()){
             Unit unit = player.unit();
 
@@ -790,6 +895,7 @@ public class NetServer implements ApplicationListener{
     public static void connectConfirm(Player player){
         if(player.con.kicked) return;
 
+        player.con.worldConfirmed = true;
         player.add();
 
         Events.fire(new PlayerConnectionConfirmed(player));
@@ -856,6 +962,28 @@ public class NetServer implements ApplicationListener{
         }
     }
 
+    /**
+     * Sends the rules that changed since the last call to all clients.
+     * Much cheaper than {@link Call#setRules(Rules)} when only a few rules change.
+     */
+    public void syncRules(){
+        if(!net.server()) return;
+
+        byte[][] encoded = RulesIO.encode(state.rules);
+
+        //rules were sent in full elsewhere, so clients may not have the baseline anymore
+        if(syncedRules == null || syncedRulesWrites != RulesIO.fullWrites){
+            Call.setRules(state.rules);
+        }else if(RulesIO.changed(encoded, syncedRules)){
+            writeBuffer.reset();
+            RulesIO.write(outputBuffer, encoded, syncedRules);
+            Call.setRuleFields(writeBuffer.toByteArray());
+        }
+
+        syncedRules = encoded;
+        syncedRulesWrites = RulesIO.fullWrites;
+    }
+
     //TODO I don't like where this is, move somewhere else?
     /** Queues a building health update. This will be sent in a Call.buildHealthUpdate packet later. */
     public void buildHealthUpdate(Building build){
@@ -882,22 +1010,36 @@ public class NetServer implements ApplicationListener{
         }
     }
 
-    /** Sends a block snapshot to all players. */
+    /**
+     * Sends a block snapshot to all players.
+     * Only buildings whose state changed since they were last sent are included, along with a rotating part of the rest.
+     */
     public void writeBlockSnapshots() throws IOException{
         syncStream.reset();
 
         short sent = 0;
+        int index = 0;
         for(Building entity : Groups.build){
             if(!entity.block.sync) continue;
+
+            blockStream.reset();
+            entity.writeAll(Writes.get(blockDataStream));
+
+            int pos = entity.pos(), hash = hash(blockStream.getBytes(), blockStream.size()) * 31 + entity.block.id;
+            boolean refresh = index++ % blockRefreshCycles == blockRefreshCycle;
+
+            if(!refresh && blockSyncHashes.containsKey(pos) && blockSyncHashes.get(pos, 0) == hash) continue;
+
+            blockSyncHashes.put(pos, hash);
             sent++;
 
-            dataStream.writeInt(entity.pos());
+            dataStream.writeInt(pos);
             dataStream.writeShort(entity.block.id);
-            entity.writeAll(Writes.get(dataStream));
+            syncStream.write(blockStream.getBytes(), 0, blockStream.size());
 
             if(syncStream.size() > maxSnapshotSize){
                 dataStream.close();
-                Call.blockSnapshot(sent, syncStream.toByteArray());
+                Call.blockSnapshot(sent, payload(syncStream));
                 sent = 0;
                 syncStream.reset();
             }
@@ -905,8 +1047,38 @@ public class NetServer implements ApplicationListener{
 
         if(sent > 0){
             dataStream.close();
-            Call.blockSnapshot(sent, syncStream.toByteArray());
+            Call.blockSnapshot(sent, payload(syncStream));
+        }
+
+        blockRefreshCycle = (blockRefreshCycle + 1) % blockRefreshCycles;
+    }
+
+    /** @return the contents of the stream, in a reused array. Only valid until the next call. */
+    private byte[] payload(ReusableByteOutStream stream){
+        int size = stream.size();
+        if(size > maxPayloadSize){
+            payloadsAllocated++;
+            return stream.toByteArray();
+        }
+
+        byte[] bytes = payloads.get(size);
+        if(bytes == null){
+            payloads.put(size, bytes = new byte[size]);
+            payloadsAllocated++;
+        }else{
+            payloadsReused++;
+        }
+
+        System.arraycopy(stream.getBytes(), 0, bytes, 0, size);
+        return bytes;
+    }
+
+    private static int hash(byte[] bytes, int length){
+        int result = 1;
+        for(int i = 0; i < length; i++){
+            result = 31 * result + bytes[i];
         }
+        return result;
     }
 
     public void writeEntitySnapshot(Player player) throws IOException{
@@ -929,39 +1101,83 @@ public class NetServer implements ApplicationListener{
 
         //write basic state data.
         Call.stateSnapshot(player.con, state.wavetime, state.wave, state.enemies, state.isPaused(), state.gameOver,
-        universe.seconds(), tps, GlobalVars.rand.seed0, GlobalVars.rand.seed1, syncStream.toByteArray());
+        universe.seconds(), tps, GlobalVars.rand.seed0, GlobalVars.rand.seed1, payload(syncStream));
 
         syncStream.reset();
 
         hiddenIds.clear();
         int sent = 0;
 
-        for(Syncc entity : Groups.sync){
+        float radius = Config.snapshotRadius.num() * tilesize;
+        if(radius > 0){
+            collectRelevant(player, radius);
+        }
+
+        if(!entityCacheValid){
+            cacheEntities();
+        }
+
+        byte[] cache = entityCache.getBytes();
+
+        var con = player.con;
+        int snapshotID = con.snapshotsSent, packet = 0;
+        boolean delta = Config.deltaSnapshots.bool();
+        Baseline base = null, next = null;
+
+        if(delta){
+            base = con.snapshotHistory.get(con.lastAckedSnapshot);
+            //the baseline's slot is about to be reused
+            if(base != null && snapshotID - base.id >= SnapshotHistory.capacity) base = null;
+            next = con.snapshotHistory.begin(snapshotID);
+        }
+
+        for(int i = 0; i < cachedEntities.size; i++){
+            Syncc entity = cachedEntities.items[i];
+
+            //may have been removed while syncing other players
+            if(!entity.isAdded()) continue;
+
             //TODO write to special list
             if(entity.isSyncHidden(player)){
                 hiddenIds.add(entity.id());
                 continue;
             }
 
-            //write all entities now
-            dataStream.writeInt(entity.id()); //write id
-            dataStream.writeByte(entity.classId() & 0xFF); //write type ID
-            entity.writeSync(Writes.get(dataStream)); //write entity
+            if(radius > 0 && !isRelevant(player, entity, radius)){
+                continue;
+            }
+
+            //copy the id, type ID and sync data that were written once for all players
+            int start = cachedOffsets.items[i], length = cachedOffsets.items[i + 1] - start;
+            if(delta){
+                writeDeltaRecord(entity.id(), cache, start, length, base, next);
+            }else{
+                syncStream.write(cache, start, length);
+            }
 
             sent++;
 
             if(syncStream.size() > maxSnapshotSize){
                 dataStream.close();
-                Call.entitySnapshot(player.con, (short)sent, syncStream.toByteArray());
+                if(delta){
+                    Call.entityDeltaSnapshot(con, snapshotID, base == null ? -1 : base.id, (short)packet++, false, (short)sent, payload(syncStream));
+                }else{
+                    Call.entitySnapshot(con, (short)sent, payload(syncStream));
+                }
                 sent = 0;
                 syncStream.reset();
             }
         }
 
-        if(sent > 0){
+        if(delta){
             dataStream.close();
 
-            Call.entitySnapshot(player.con, (short)sent, syncStream.toByteArray());
+            //always sent, so that the client knows when the snapshot is complete
+            Call.entityDeltaSnapshot(con, snapshotID, base == null ? -1 : base.id, (short)packet, true, (short)sent, payload(syncStream));
+        }else if(sent > 0){
+            dataStream.close();
+
+            Call.entitySnapshot(con, (short)sent, payload(syncStream));
         }
 
         if(hiddenIds.size > 0){
@@ -971,6 +1187,88 @@ public class NetServer implements ApplicationListener{
         player.con.snapshotsSent++;
     }
 
+    /**
+     * Writes a cached entity record to the sync stream, encoded against the entity's data in the baseline if possible.
+     * The full data is recorded in the next baseline, as the client reconstructs it too.
+     */
+    private void writeDeltaRecord(int id, byte[] cache, int start, int length, @Nullable Baseline base, Baseline next) throws IOException{
+        //the id and type ID are always written as-is
+        int payload = start + 5, payloadLength = length - 5;
+        syncStream.write(cache, start, 5);
+        next.put(id, cache, payload, payloadLength);
+
+        int baseLength = base == null ? -1 : base.length(id);
+
+        if(baseLength != payloadLength){
+            dataStream.writeByte(SnapshotHistory.recordFull);
+            dataStream.writeShort(payloadLength);
+            syncStream.write(cache, payload, payloadLength);
+        }else if(SnapshotHistory.equal(cache, payload, base.data(), base.offset(id), payloadLength)){
+            dataStream.writeByte(SnapshotHistory.recordSame);
+        }else{
+            dataStream.writeByte(SnapshotHistory.recordDelta);
+            SnapshotHistory.writeDelta(dataStream, cache, payload, base.data(), base.offset(id), payloadLength);
+        }
+    }
+
+    /** Encodes the sync data of every entity into the entity cache, to be copied into each player's snapshot. */
+    private void cacheEntities() throws IOException{
+        entityCache.reset();
+        cachedEntities.clear();
+        cachedOffsets.clear();
+
+        for(Syncc entity : Groups.sync){
+            cachedEntities.add(entity);
+            cachedOffsets.add(entityCache.size());
+
+            entityCacheStream.writeInt(entity.id()); //write id
+            entityCacheStream.writeByte(entity.classId() & 0xFF); //write type ID
+            entity.writeSync(Writes.get(entityCacheStream)); //write entity
+        }
+
+        cachedOffsets.add(entityCache.size());
+        entityCacheValid = true;
+    }
+
+    /** Collects the units and bullets inside the player's view, extended by the specified radius. */
+    private void collectRelevant(Player player, float radius){
+        relevantIds.clear();
+
+        var con = player.con;
+        //fall back to the player position until the client has reported its view
+        boolean hasView = con.viewWidth > 0 && con.viewHeight > 0;
+        relevantCenter.set(hasView ? con.viewX : player.x, hasView ? con.viewY : player.y);
+        float
+        w = Math.min(con.viewWidth, maxViewSize) + radius * 2f,
+        h = Math.min(con.viewHeight, maxViewSize) + radius * 2f,
+        x = relevantCenter.x - w / 2f,
+        y = relevantCenter.y - h / 2f;
+
+        Groups.unit.intersect(x, y, w, h, unit -> {
+            relevantIds.add(unit.id());
+        });
+        Groups.bullet.intersect(x, y, w, h, bullet -> {
+            relevantIds.add(bullet.id());
+        });
+    }
+
+    /** @return whether the entity should be written to this player's snapshot, based on its type and distance. */
+    private boolean isRelevant(Player player, Syncc entity, float radius){
+        //players and non-spatial entities are always synced
+        if(!(entity instanceof Unitc || entity instanceof Bulletc) || relevantIds.contains(entity.id()) || entity == player.unit()) return true;
+
+        //bullets are short-lived and simulated by clients, so far-away ones are never worth sending
+        if(entity instanceof Bulletc) return false;
+
+        int interval = Config.farSnapshotInterval.num();
+        if(interval <= 0) return false;
+
+        //units further away are updated less often; offsetting by ID spreads them out across snapshots
+        float dst = entity instanceof Posc pos ? relevantCenter.dst(pos.x(), pos.y()) : 0f;
+        int rate = interval * (1 + (int)(dst / (radius * 4f)));
+        return (player.con.snapshotsSent + entity.id()) % rate == 0;
+    }
+
     public String fixName(String name){
         name = name.trim().replace("\n", "").replace("\t", "");
         if(name.equals("[") || name.equals("]")){
@@ -1023,6 +1321,9 @@ public class NetServer implements ApplicationListener{
     void sync(){
         try{
             int interval = Config.snapshotInterval.num();
+            //entity sync data is encoded at most once per frame, on the first snapshot that needs it
+            entityCacheValid = false;
+
             Groups.player.each(p -> !p.isLocal(), player -> {
                 if(player.con == null || !player.con.isConnected()){
                     onDisconnect(player, "disappeared");
@@ -8,7 +8,7 @@ import mindustry.gen.*;
 abstract class HealthComp implements Entityc, Posc{
     static final float hitDuration = 9f;
 
-    float health;
+    @SyncPrecision(1f / 8f) float health;
     transient float hitTime;
     transient float maxHealth = 1f;
     transient boolean dead;
@@ -16,7 +16,7 @@ abstract class MechComp implements Posc, Flyingc, Hitboxc, Unitc, Mechc, Elevati
     @Import float x, y, hitSize;
     @Import UnitType type;
 
-    @SyncField(false) @SyncLocal float baseRotation;
+    @SyncField(false) @SyncLocal @SyncPrecision(value = 360f / 65536, bits = 16) float baseRotation;
     transient float walkTime, walkExtension;
     transient private boolean walked;
 
@@ -13,7 +13,7 @@ import static mindustry.Vars.*;
 
 @Component
 abstract class PosComp implements Position{
-    @SyncField(true) @SyncLocal float x, y;
+    @SyncField(true) @SyncLocal @SyncPrecision(tilesize / 8f) float x, y;
 
     void set(float x, float y){
         this.x = x;
@@ -5,5 +5,5 @@ import mindustry.gen.*;
 
 @Component
 abstract class RotComp implements Entityc{
-    @SyncField(false) @SyncLocal float rotation;
+    @SyncField(false) @SyncLocal @SyncPrecision(value = 360f / 65536, bits = 16) float rotation;
 }
@@ -69,6 +69,8 @@ public class Saves{
             }
         }
 
+        metaIndex.save();
+
         //clear saves from build <130 that had the new naval sectors.
         saves.removeAll(s -> {
             if(s.getSector() != null && (s.getSector().id == 108 || s.getSector().id == 216) && s.meta.build <= 130 && s.meta.build > 0){
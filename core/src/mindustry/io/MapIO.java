@@ -35,14 +35,9 @@ public class MapIO{
     }
 
     public static Map createMap(Fi file, boolean custom) throws IOException{
-        try(InputStream is = new InflaterInputStream(file.read(bufferSize)); CounterInputStream counter = new CounterInputStream(is); DataInputStream stream = new DataInputStream(counter)){
-            SaveIO.readHeader(stream);
-            int version = stream.readInt();
-            SaveVersion ver = SaveIO.getSaveWriter(version);
-            StringMap tags = new StringMap();
-            ver.region("meta", stream, counter, in -> tags.putAll(ver.readStringMap(in)));
-            return new Map(file, tags.getInt("width"), tags.getInt("height"), tags, custom, version, Version.build);
-        }
+        MetaIndex.Entry entry = SaveIO.getIndexed(file);
+        StringMap tags = new StringMap(entry.tags);
+        return new Map(file, tags.getInt("width"), tags.getInt("height"), tags, custom, entry.version, Version.build);
     }
 
     public static void writeMap(Fi file, Map map) throws IOException{
@@ -65,88 +60,49 @@ public class MapIO{
         map.spawns = 0;
         map.teams.clear();
 
-        try(InputStream is = new InflaterInputStream(map.file.read(bufferSize)); CounterInputStream counter = new CounterInputStream(is); DataInputStream stream = new DataInputStream(counter)){
-            SaveIO.readHeader(stream);
-            int version = stream.readInt();
-            SaveVersion ver = SaveIO.getSaveWriter(version);
-            ver.region("meta", stream, counter, ver::readStringMap);
-
-            Pixmap floors = new Pixmap(map.width, map.height);
-            Pixmap walls = new Pixmap(map.width, map.height);
-            int black = 255;
-            int shade = Color.rgba8888(0f, 0f, 0f, 0.5f);
-            CachedTile tile = new CachedTile(){
-                @Override
-                public void setBlock(Block type){
-                    super.setBlock(type);
-
-                    int c = colorFor(block(), Blocks.air, Blocks.air, team());
-                    if(c != black){
-                        walls.setRaw(x, floors.height - 1 - y, c);
-                        floors.set(x, floors.height - 1 - y + 1, shade);
-                    }
-                }
-            };
-
-            ver.region("content", stream, counter, ver::readContentHeader);
-            ver.region("preview_map", stream, counter, in -> ver.readMap(in, new WorldContext(){
-                @Override public void resize(int width, int height){}
-                @Override public boolean isGenerating(){return false;}
-                @Override public void begin(){
-                    world.setGenerating(true);
-                }
-                @Override public void end(){
-                    world.setGenerating(false);
-                }
+        PackedTiles tiles = PackedTiles.read(map.file);
 
-                @Override
-                public void onReadBuilding(){
-                    //read team colors
-                    if(tile.build != null){
-                        int c = tile.build.team.color.rgba8888();
-                        int size = tile.block().size;
-                        int offsetx = -(size - 1) / 2;
-                        int offsety = -(size - 1) / 2;
-                        for(int dx = 0; dx < size; dx++){
-                            for(int dy = 0; dy < size; dy++){
-                                int drawx = tile.x + dx + offsetx, drawy = tile.y + dy + offsety;
-                                walls.set(drawx, floors.height - 1 - drawy, c);
-                            }
-                        }
-
-                        if(tile.build.block instanceof CoreBlock){
-                            map.teams.add(tile.build.team.id);
-                        }
-                    }
-                }
+        Pixmap floors = new Pixmap(tiles.width, tiles.height);
+        Pixmap walls = new Pixmap(tiles.width, tiles.height);
+        int black = 255;
+        int shade = Color.rgba8888(0f, 0f, 0f, 0.5f);
 
-                @Override
-                public Tile tile(int index){
-                    tile.x = (short)(index % map.width);
-                    tile.y = (short)(index / map.width);
-                    return tile;
-                }
+        for(int i = 0; i < tiles.width * tiles.height; i++){
+            int x = i % tiles.width, y = floors.height - 1 - i / tiles.width;
+            Floor overlay = tiles.overlay(i);
+            Block block = tiles.block(i);
 
-                @Override
-                public Tile create(int x, int y, int floorID, int overlayID, int wallID){
-                    if(overlayID != 0){
-                        floors.set(x, floors.height - 1 - y, colorFor(Blocks.air, Blocks.air, content.block(overlayID), Team.derelict));
-                    }else{
-                        floors.set(x, floors.height - 1 - y, colorFor(Blocks.air, content.block(floorID), Blocks.air, Team.derelict));
-                    }
-                    if(content.block(overlayID) == Blocks.spawn){
-                        map.spawns ++;
-                    }
-                    return tile;
+            if(overlay != Blocks.air){
+                floors.set(x, y, colorFor(Blocks.air, Blocks.air, overlay, Team.derelict));
+            }else{
+                floors.set(x, y, colorFor(Blocks.air, tiles.floor(i), Blocks.air, Team.derelict));
+            }
+            if(overlay == Blocks.spawn){
+                map.spawns ++;
+            }
+
+            //buildings are drawn in the color of their team
+            if(block.hasBuilding()){
+                walls.set(x, y, tiles.team(i).color.rgba8888());
+            }else{
+                int c = colorFor(block, Blocks.air, Blocks.air, Team.derelict);
+                if(c != black){
+                    walls.setRaw(x, y, c);
+                    floors.set(x, y + 1, shade);
                 }
-            }));
+            }
+        }
 
-            floors.draw(walls, true);
-            walls.dispose();
-            return floors;
-        }finally{
-            content.setTemporaryMapper(null);
+        for(int i = 0; i < tiles.buildings.size; i++){
+            int index = tiles.buildings.get(i);
+            if(tiles.block(index) instanceof CoreBlock){
+                map.teams.add(tiles.team(index).id);
+            }
         }
+
+        floors.draw(walls, true);
+        walls.dispose();
+        return floors;
     }
 
     public static Pixmap generatePreview(Tiles tiles){
@@ -0,0 +1,151 @@
+package mindustry.io;
+
+import arc.files.*;
+import arc.struct.*;
+import arc.util.*;
+
+import java.io.*;
+
+/**
+ * A persistent index of the tags in the header of save and map files, so that listing them doesn't require opening every file.
+ * Entries are keyed by absolute path, and are only used while the size and modification time of the file stay the same.
+ * Files that change are read again and replace their entry. Call {@link #save()} after listing files to persist updates.
+ */
+public class MetaIndex{
+    static final int version = 1;
+
+    private final Fi file;
+    private final ObjectMap<String, Entry> entries = new ObjectMap<>();
+    private boolean loaded, dirty;
+
+    public MetaIndex(Fi file){
+        this.file = file;
+    }
+
+    /** @return the entry of a file, or null if the file is not indexed or has changed since. */
+    public synchronized @Nullable Entry get(Fi target){
+        load();
+
+        Entry entry = entries.get(key(target));
+        return entry != null && entry.modified == target.lastModified() && entry.length == target.length() ? entry : null;
+    }
+
+    /** Adds or replaces the entry of a file. Files without a modification time, such as internal files, are not indexed. */
+    public synchronized Entry put(Fi target, int version, StringMap tags){
+        load();
+
+        Entry entry = new Entry(target.lastModified(), target.length(), version, tags);
+        if(entry.modified == 0) return entry;
+
+        Entry previous = entries.put(key(target), entry);
+        if(previous != null) entry.preview = previous.preview;
+        dirty = true;
+        return entry;
+    }
+
+    /** @return whether the preview of a file was generated for an older version of it. Files without a recorded preview are never stale. */
+    public synchronized boolean previewStale(Fi target){
+        Entry entry = get(target);
+        return entry != null && entry.preview != 0 && entry.preview != entry.modified;
+    }
+
+    /** Marks the preview of a file as generated for its current version. */
+    public synchronized void previewed(Fi target){
+        Entry entry = get(target);
+        if(entry != null){
+            entry.preview = entry.modified;
+            dirty = true;
+        }
+    }
+
+    /** Removes entries of files that no longer exist, then writes the index if anything changed. */
+    public synchronized void save(){
+        if(!loaded) return;
+
+        int size = entries.size;
+        for(String path : entries.keys().toSeq()){
+            if(!new Fi(path).exists()) entries.remove(path);
+        }
+        if(!dirty && size == entries.size) return;
+
+        Fi temp = file.sibling(file.name() + ".tmp");
+        try(DataOutputStream stream = new DataOutputStream(temp.write(false, 8192))){
+            stream.writeInt(version);
+            stream.writeInt(entries.size);
+            for(var entry : entries){
+                Entry value = entry.value;
+                stream.writeUTF(entry.key);
+                stream.writeLong(value.modified);
+                stream.writeLong(value.length);
+                stream.writeLong(value.preview);
+                stream.writeInt(value.version);
+                stream.writeShort(value.tags.size);
+                for(var tag : value.tags){
+                    stream.writeUTF(tag.key);
+                    stream.writeUTF(tag.value);
+                }
+            }
+        }catch(Throwable e){
+            Log.err("Failed to write metadata index", e);
+            temp.delete();
+            return;
+        }
+
+        temp.moveTo(file);
+        dirty = false;
+    }
+
+    private void load(){
+        if(loaded) return;
+        loaded = true;
+
+        if(!file.exists()) return;
+
+        try(DataInputStream stream = new DataInputStream(file.read(8192))){
+            if(stream.readInt() != version) return;
+
+            int amount = stream.readInt();
+            for(int i = 0; i < amount; i++){
+                String path = stream.readUTF();
+                long modified = stream.readLong(), length = stream.readLong(), preview = stream.readLong();
+                int version = stream.readInt();
+
+                StringMap tags = new StringMap();
+                int tagAmount = stream.readUnsignedShort();
+                for(int j = 0; j < tagAmount; j++){
+                    tags.put(stream.readUTF(), stream.readUTF());
+                }
+
+                Entry entry = new Entry(modified, length, version, tags);
+                entry.preview = preview;
+                entries.put(path, entry);
+            }
+        }catch(Throwable e){
+            //the index is only a cache; start over
+            Log.warn("Failed to read metadata index: @", e.toString());
+            entries.clear();
+        }
+    }
+
+    private static String key(Fi target){
+        return target.absolutePath();
+    }
+
+    public static class Entry{
+        /** Modification time and size of the file when it was indexed. */
+        public final long modified, length;
+        /** Save format version of the file. */
+        public final int version;
+        /** Tags of the file's meta region. Must not be modified. */
+        public final StringMap tags;
+        /** Modification time of the file when its preview was generated, or 0 if unknown. */
+        long preview;
+
+        Entry(long modified, long length, int version, StringMap tags){
+            this.modified = modified;
+            this.length = length;
+            this.version = version;
+            this.tags = tags;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package mindustry.io;
+
+import arc.util.io.*;
+
+/** Reads and writes floats with reduced precision. Used by generated sync code for fields marked with SyncPrecision. */
+public class QuantizedIO{
+
+    /**
+     * Writes a quantized float.
+     * @param precision the smallest difference between two written values.
+     * @param bits 8, 16 or 32 for a fixed size integer, or 0 for a variable-length integer.
+     * @param angle whether the value is an angle in degrees, which is wrapped to 0-360 and stored unsigned.
+     */
+    public static void write(Writes write, float value, float precision, int bits, boolean angle){
+        if(angle){
+            value %= 360f;
+            if(value < 0f) value += 360f;
+        }
+
+        //saturates on overflow, and NaN becomes 0
+        int steps = Math.round(value / precision);
+        //small positive values must not become 0, as that would make e.g. units with little health appear dead
+        if(steps == 0 && value > 0f) steps = 1;
+
+        switch(bits){
+            case 8 -> write.b(angle ? steps : clamp(steps, Byte.MIN_VALUE, Byte.MAX_VALUE));
+            case 16 -> write.s(angle ? steps : clamp(steps, Short.MIN_VALUE, Short.MAX_VALUE));
+            case 32 -> write.i(steps);
+            default -> writeVar(write, (steps << 1) ^ (steps >> 31));
+        }
+    }
+
+    /** Reads a float written with {@link #write}, using the same parameters. */
+    public static float read(Reads read, float precision, int bits, boolean angle){
+        int steps = switch(bits){
+            case 8 -> angle ? read.b() & 0xff : read.b();
+            case 16 -> angle ? read.s() & 0xffff : read.s();
+            case 32 -> read.i();
+            default -> {
+                int zigzag = readVar(read);
+                yield (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        };
+
+        return steps * precision;
+    }
+
+    /** Writes an unsigned integer using 7 bits per byte, so small values take fewer bytes. */
+    public static void writeVar(Writes write, int value){
+        while((value & ~0x7f) != 0){
+            write.b((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        write.b(value);
+    }
+
+    public static int readVar(Reads read){
+        int result = 0;
+        for(int shift = 0; shift < 32; shift += 7){
+            byte b = read.b();
+            result |= (b & 0x7f) << shift;
+            if((b & 0x80) == 0) break;
+        }
+        return result;
+    }
+
+    private static int clamp(int value, int min, int max){
+        return Math.max(min, Math.min(value, max));
+    }
+}
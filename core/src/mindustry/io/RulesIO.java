@@ -0,0 +1,210 @@
+package mindustry.io;
+
+import arc.graphics.*;
+import arc.struct.*;
+import arc.util.*;
+import arc.util.io.*;
+import mindustry.game.*;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+/**
+ * Compact binary encoding of {@link Rules} and {@link MapObjectives} for network sync.
+ * Every serialized field has an index in a schema sorted by field name. Primitives, strings, teams and colors are written
+ * directly, and everything else as binary JSON. Encodings can be limited to the fields that differ from an earlier
+ * encoding, so that changing a single rule only costs a few bytes.
+ */
+public class RulesIO{
+    /** Version of the value encoding. Part of the schema ID, so changes to it are detected. */
+    private static final int version = 1;
+
+    private static final Field[] fields;
+    /** Identifies the version and fields of the schema. Encodings with a different ID cannot be read. */
+    private static final int schema;
+
+    /** Number of times all rules were written. Used to detect full rule syncs that did not go through a delta baseline. */
+    public static int fullWrites;
+
+    /** Encoding of the default rules. */
+    private static @Nullable byte[][] defaults;
+
+    private static final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private static final DataOutputStream bufferStream = new DataOutputStream(buffer);
+
+    static{
+        Seq<Field> result = new Seq<>(Field.class);
+        for(Field field : Rules.class.getFields()){
+            int mod = field.getModifiers();
+            if(!Modifier.isStatic(mod) && !Modifier.isTransient(mod) && !Modifier.isFinal(mod)){
+                result.add(field);
+            }
+        }
+        result.sort(Structs.comparing(Field::getName));
+        fields = result.toArray();
+
+        int hash = version;
+        for(Field field : fields){
+            hash = hash * 31 + (field.getName() + ":" + field.getType().getName()).hashCode();
+        }
+        schema = hash;
+    }
+
+    /** @return every field of the rules, encoded separately. */
+    public static byte[][] encode(Rules rules){
+        byte[][] result = new byte[fields.length][];
+        try{
+            for(int i = 0; i < fields.length; i++){
+                buffer.reset();
+                writeValue(bufferStream, fields[i], fields[i].get(rules));
+                result[i] = buffer.toByteArray();
+            }
+        }catch(IOException | IllegalAccessException e){
+            throw new RuntimeException(e);
+        }
+        return result;
+    }
+
+    /** @return whether any field differs between two encodings. */
+    public static boolean changed(byte[][] encoded, byte[][] baseline){
+        for(int i = 0; i < encoded.length; i++){
+            if(!Arrays.equals(encoded[i], baseline[i])) return true;
+        }
+        return false;
+    }
+
+    /** Writes all rules. Fields that have their default value are skipped, as {@link #read(Reads)} starts from defaults. */
+    public static void write(Writes write, Rules rules){
+        if(defaults == null){
+            defaults = encode(new Rules());
+        }
+
+        fullWrites++;
+        write(write, encode(rules), defaults);
+    }
+
+    /**
+     * Writes encoded fields.
+     * @param baseline if not null, only fields that differ from this encoding are written.
+     */
+    public static void write(Writes write, byte[][] encoded, @Nullable byte[][] baseline){
+        int count = 0;
+        for(int i = 0; i < encoded.length; i++){
+            if(baseline == null || !Arrays.equals(encoded[i], baseline[i])) count++;
+        }
+
+        write.i(schema);
+        write.s(count);
+
+        for(int i = 0; i < encoded.length; i++){
+            if(baseline == null || !Arrays.equals(encoded[i], baseline[i])){
+                write.s(i);
+                write.i(encoded[i].length);
+                write.b(encoded[i]);
+            }
+        }
+    }
+
+    /** Reads all rules. */
+    public static Rules read(Reads read){
+        Rules rules = new Rules();
+        read(read, rules);
+        return rules;
+    }
+
+    /** Reads fields into existing rules, leaving fields that were not written unchanged. */
+    public static void read(Reads read, Rules rules){
+        int id = read.i();
+        if(id != schema){
+            throw new IllegalArgumentException("Rules schema mismatch: " + id + " != " + schema);
+        }
+
+        int count = read.s();
+        try{
+            for(int i = 0; i < count; i++){
+                Field field = fields[read.s()];
+                byte[] bytes = read.b(read.i());
+                field.set(rules, readValue(new DataInputStream(new ByteArrayInputStream(bytes)), field));
+            }
+        }catch(IOException | IllegalAccessException e){
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Writes objectives as binary JSON. */
+    public static void writeObjectives(Writes write, MapObjectives objectives){
+        buffer.reset();
+        JsonIO.writeBytes(objectives, null, bufferStream);
+
+        write.b(version);
+        write.i(buffer.size());
+        write.b(buffer.toByteArray());
+    }
+
+    public static MapObjectives readObjectives(Reads read){
+        int id = read.b();
+        if(id != version){
+            throw new IllegalArgumentException("Objectives version mismatch: " + id + " != " + version);
+        }
+
+        try{
+            return JsonIO.readBytes(MapObjectives.class, null, new DataInputStream(new ByteArrayInputStream(read.b(read.i()))));
+        }catch(IOException e){
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void writeValue(DataOutputStream stream, Field field, Object value) throws IOException{
+        Class<?> type = field.getType();
+
+        if(type == boolean.class){
+            stream.writeBoolean((Boolean)value);
+        }else if(type == int.class){
+            stream.writeInt((Integer)value);
+        }else if(type == float.class){
+            stream.writeFloat((Float)value);
+        }else if(type == long.class){
+            stream.writeLong((Long)value);
+        }else if(type == String.class){
+            stream.writeBoolean(value != null);
+            if(value != null) stream.writeUTF((String)value);
+        }else if(type == Team.class){
+            stream.writeByte(((Team)value).id);
+        }else if(type == Color.class){
+            stream.writeInt(((Color)value).rgba8888());
+        }else{
+            JsonIO.writeBytes(value, elementType(field), stream);
+        }
+    }
+
+    private static Object readValue(DataInputStream stream, Field field) throws IOException{
+        Class<?> type = field.getType();
+
+        if(type == boolean.class){
+            return stream.readBoolean();
+        }else if(type == int.class){
+            return stream.readInt();
+        }else if(type == float.class){
+            return stream.readFloat();
+        }else if(type == long.class){
+            return stream.readLong();
+        }else if(type == String.class){
+            return stream.readBoolean() ? stream.readUTF() : null;
+        }else if(type == Team.class){
+            return Team.get(stream.readUnsignedByte());
+        }else if(type == Color.class){
+            return new Color(stream.readInt());
+        }else{
+            return JsonIO.readBytes(type, elementType(field), stream);
+        }
+    }
+
+    private static @Nullable Class<?> elementType(Field field){
+        if(field.getGenericType() instanceof ParameterizedType param){
+            Type[] args = param.getActualTypeArguments();
+            if(args.length > 0 && args[0] instanceof Class<?> c) return c;
+        }
+        return null;
+    }
+}
@@ -11,7 +11,10 @@ import mindustry.io.versions.*;
 import mindustry.world.*;
 
 import java.io.*;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.zip.*;
 
 import static mindustry.Vars.*;
@@ -20,7 +23,9 @@ public class SaveIO{
     /** Save format header. */
     public static final byte[] header = {'M', 'S', 'A', 'V'};
     public static final IntMap<SaveVersion> versions = new IntMap<>();
-    public static final Seq<SaveVersion> versionArray = Seq.with(new Save1(), new Save2(), new Save3(), new Save4(), new Save5(), new Save6(), new Save7(), new Save8());
+    public static final Seq<SaveVersion> versionArray = Seq.with(new Save1(), new Save2(), new Save3(), new Save4(), new Save5(), new Save6(), new Save7(), new Save8(), new Save9());
+    /** Size of the blocks that saves are split into, so that they can be compressed in parallel. */
+    public static final int deflateBlockSize = 1024 * 1024;
 
     static{
         for(SaveVersion version : versionArray){
@@ -47,6 +52,44 @@ public class SaveIO{
         }
     }
 
+    /**
+     * Writes the current state into an uncompressed in-memory image. This must be called on the main thread,
+     * but is much faster than {@link #save(Fi)} as it does no compression or disk access.
+     * The result can then be written with {@link #writeSnapshot(Fi, byte[])} from any thread.
+     */
+    public static byte[] snapshot(){
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1024 * 1024);
+        write(out, null);
+        return out.toByteArray();
+    }
+
+    /**
+     * Compresses a snapshot into a temporary file, then moves it over the target file.
+     * The previous file is kept as a backup, so a crash at any point leaves at least one valid save.
+     */
+    public static void writeSnapshot(Fi file, byte[] snapshot){
+        Fi temp = file.sibling(file.name() + ".tmp");
+        try{
+            try(OutputStream out = temp.write(false, bufferSize)){
+                deflate(snapshot, snapshot.length, out);
+            }
+
+            if(file.exists()) move(file, backupFileFor(file));
+            move(temp, file);
+        }catch(Throwable e){
+            temp.delete();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void move(Fi from, Fi to) throws IOException{
+        try{
+            Files.move(from.file().toPath(), to.file().toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }catch(AtomicMoveNotSupportedException e){
+            Files.move(from.file().toPath(), to.file().toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
     public static DataInputStream getStream(Fi file){
         return new DataInputStream(new InflaterInputStream(file.read(bufferSize)));
     }
@@ -60,8 +103,8 @@ public class SaveIO{
     }
 
     private static boolean isSaveFileValid(Fi file){
-        try(DataInputStream stream = new DataInputStream(new InflaterInputStream(file.read(bufferSize)))){
-            getMeta(stream);
+        try{
+            getIndexed(file);
             return true;
         }catch(Throwable e){
             return false;
@@ -79,13 +122,34 @@ public class SaveIO{
 
     public static SaveMeta getMeta(Fi file){
         try{
-            return getMeta(getStream(file));
+            return new SaveMeta(new StringMap(getIndexed(file).tags));
         }catch(Throwable e){
             Log.err(e);
             return getMeta(getBackupStream(file));
         }
     }
 
+    /**
+     * Reads the format version and meta tags of a save or map file. If the file has not changed since it was last read,
+     * these are taken from the {@link MetaIndex} instead of the file.
+     */
+    public static MetaIndex.Entry getIndexed(Fi file) throws IOException{
+        MetaIndex.Entry entry = metaIndex == null ? null : metaIndex.get(file);
+        if(entry != null) return entry;
+
+        try(DataInputStream stream = getStream(file)){
+            readHeader(stream);
+            int version = stream.readInt();
+            SaveVersion ver = versions.get(version);
+
+            if(ver == null) throw new IOException("Unknown save version: " + version + ". Are you trying to load a save from a newer version?");
+
+            stream.readInt(); //length of the meta region
+            StringMap tags = ver.readStringMap(stream);
+            return metaIndex == null ? new MetaIndex.Entry(file.lastModified(), file.length(), version, tags) : metaIndex.put(file, version, tags);
+        }
+    }
+
     public static SaveMeta getMeta(DataInputStream stream){
 
         try{
@@ -112,7 +176,14 @@ public class SaveIO{
     }
 
     public static void write(Fi file, StringMap tags){
-        write(new FastDeflaterOutputStream(file.write(false, bufferSize)), tags);
+        ReusableByteOutStream bytes = new ReusableByteOutStream();
+        write(bytes, tags);
+
+        try(OutputStream out = file.write(false, bufferSize)){
+            deflate(bytes.getBytes(), bytes.size(), out);
+        }catch(IOException e){
+            throw new RuntimeException(e);
+        }
     }
 
     public static void write(Fi file){
@@ -183,6 +254,126 @@ public class SaveIO{
         return versionArray.peek();
     }
 
+    /**
+     * Compresses data into a zlib stream, as read by {@link InflaterInputStream}. The data is split into blocks that are compressed
+     * in parallel. Every block but the last is flushed to a byte boundary, so the compressed blocks can simply be joined.
+     */
+    public static void deflate(byte[] data, int length, OutputStream out) throws IOException{
+        int blocks = Math.max((length + deflateBlockSize - 1) / deflateBlockSize, 1);
+        byte[][] compressed = new byte[blocks][];
+        int[] checksums = new int[blocks];
+
+        parallel(blocks, i -> {
+            int start = i * deflateBlockSize, size = Math.min(length - start, deflateBlockSize);
+            compressed[i] = deflateBlock(data, start, size, i == blocks - 1);
+
+            Adler32 adler = new Adler32();
+            adler.update(data, start, size);
+            checksums[i] = (int)adler.getValue();
+        });
+
+        //zlib header: deflate with a 32K window, fastest compression
+        out.write(0x78);
+        out.write(0x01);
+
+        //the checksum of no data is 1
+        int adler = 1;
+        for(int i = 0; i < blocks; i++){
+            out.write(compressed[i]);
+            adler = combineAdler(adler, checksums[i], Math.min(length - i * deflateBlockSize, deflateBlockSize));
+        }
+
+        out.write(adler >>> 24);
+        out.write(adler >>> 16);
+        out.write(adler >>> 8);
+        out.write(adler);
+    }
+
+    static byte[] deflateBlock(byte[] data, int offset, int length, boolean last){
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length / 4 + 64);
+        byte[] buffer = new byte[8192];
+
+        try{
+            deflater.setInput(data, offset, length);
+
+            if(last){
+                deflater.finish();
+                while(!deflater.finished()){
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+            }else{
+                //a full buffer means there may be more output pending
+                int written;
+                do{
+                    written = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    out.write(buffer, 0, written);
+                }while(written == buffer.length);
+            }
+        }finally{
+            deflater.end();
+        }
+
+        return out.toByteArray();
+    }
+
+    /** @return the Adler-32 checksum of two concatenated pieces of data, given their checksums and the length of the second. */
+    public static int combineAdler(int adler1, int adler2, long length2){
+        final long base = 65521;
+        long rem = length2 % base;
+        long sum1 = adler1 & 0xffffL;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xffffL) + base - 1;
+        sum2 += ((adler1 >>> 16) & 0xffffL) + ((adler2 >>> 16) & 0xffffL) + base - rem;
+        if(sum1 >= base) sum1 -= base;
+        if(sum1 >= base) sum1 -= base;
+        if(sum2 >= base << 1) sum2 -= base << 1;
+        if(sum2 >= base) sum2 -= base;
+        return (int)(sum1 | (sum2 << 16));
+    }
+
+    /**
+     * Runs a task for every index on the main executor. The calling thread takes part as well, so this cannot deadlock
+     * when called from a thread of the executor itself.
+     */
+    public static void parallel(int count, IndexTask task) throws IOException{
+        AtomicInteger next = new AtomicInteger();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        CountDownLatch done = new CountDownLatch(count);
+
+        Runnable worker = () -> {
+            int index;
+            while((index = next.getAndIncrement()) < count){
+                try{
+                    if(error.get() == null) task.run(index);
+                }catch(Throwable e){
+                    error.compareAndSet(null, e);
+                }finally{
+                    done.countDown();
+                }
+            }
+        };
+
+        for(int i = 0; i < Math.min(count, OS.cores) - 1; i++){
+            mainExecutor.submit(worker);
+        }
+        worker.run();
+
+        try{
+            done.await();
+        }catch(InterruptedException e){
+            throw new IOException(e);
+        }
+
+        if(error.get() != null){
+            throw new IOException("Error in parallel save task.", error.get());
+        }
+    }
+
+    public interface IndexTask{
+        void run(int index) throws Exception;
+    }
+
     public static void readHeader(DataInput input) throws IOException{
         byte[] bytes = new byte[header.length];
         input.readFully(bytes);
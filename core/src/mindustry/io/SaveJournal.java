@@ -0,0 +1,300 @@
+package mindustry.io;
+
+import arc.*;
+import arc.files.*;
+import arc.struct.*;
+import arc.struct.IntSet.*;
+import arc.util.*;
+import arc.util.io.*;
+import mindustry.content.*;
+import mindustry.entities.*;
+import mindustry.game.EventType.*;
+import mindustry.game.*;
+import mindustry.gen.*;
+import mindustry.world.*;
+import mindustry.world.blocks.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static mindustry.Vars.*;
+
+/**
+ * An append-only log of the changes made to the world since a save was written: blocks that were placed, removed, rotated
+ * or configured, and units that were added or removed. Loading the save and then {@link #replay(Fi)} restores these changes.
+ * Other state, such as the items in buildings, the positions of units and units carried as payload, is only kept by full saves.
+ * Changes are buffered in memory and appended to the file in the background by {@link #flush()}.
+ * Until a new save is known to be written, changes are appended to the journal of the previous save as well, so that they can be recovered if writing fails.
+ * Units are compared with the last flush instead of being tracked through events, as units can leave the world in many ways
+ * that fire no event, such as being consumed by a reconstructor or picked up as payload.
+ */
+public class SaveJournal{
+    static final byte[] header = {'M', 'J', 'R', 'N'};
+    static final int version = 1;
+    static final byte typeTile = 0, typeUnitAdded = 1, typeUnitRemoved = 2;
+
+    private final ExecutorService executor;
+    private final ReusableByteOutStream buffer = new ReusableByteOutStream(), entryBuffer = new ReusableByteOutStream();
+    private final DataOutputStream stream = new DataOutputStream(buffer), entryStream = new DataOutputStream(entryBuffer);
+    private final Writes entryWrite = new Writes(entryStream);
+    /** IDs of the units that are in the save or were recorded as added. */
+    private IntSet units = new IntSet(), lastUnits = new IntSet();
+
+    private @Nullable Fi file;
+    /** Journal of the previous save, which receives the same changes until the current save is written. */
+    private @Nullable Fi previous;
+
+    /** @param executor the executor that appends to files. It should run tasks in order, and be the one that writes the saves. */
+    public SaveJournal(ExecutorService executor){
+        this.executor = executor;
+
+        Events.on(TileChangeEvent.class, e -> tile(e.tile));
+        Events.on(ConfigEvent.class, e -> tile(e.tile.tile));
+        Events.on(BuildRotateEvent.class, e -> tile(e.build.tile));
+        Events.on(BuildTeamChangeEvent.class, e -> tile(e.build.tile));
+    }
+
+    /** @return the journal file that belongs to a save. */
+    public static Fi fileFor(Fi save){
+        return save.sibling(save.nameWithoutExtension() + ".journal");
+    }
+
+    /**
+     * Starts recording changes for a save that was just captured, and is about to be written.
+     * Changes still buffered for the previous save are flushed first. Call {@link #saved(Fi)} or {@link #failed(Fi)} once writing is done.
+     */
+    public void begin(Fi save){
+        //both journals now start from the current world, so later changes apply to either of them
+        flush();
+        Fi last = file;
+        previous = null;
+        file = fileFor(save);
+
+        try{
+            stream.write(header);
+            stream.writeInt(version);
+            SaveIO.getSaveWriter().writeContentHeader(stream);
+        }catch(IOException e){
+            throw new RuntimeException(e);
+        }
+
+        units.clear();
+        for(Unit unit : Groups.unit){
+            if(unit.serialize()) units.add(unit.id());
+        }
+
+        //the journal of an older save may exist under the same name, and must not be appended to
+        Fi target = file;
+        executor.submit(target::delete);
+        write();
+        previous = last;
+    }
+
+    /** Stops appending to the journal of the previous save, as the save passed to {@link #begin(Fi)} was written. */
+    public void saved(Fi save){
+        if(file != null && file.equals(fileFor(save))){
+            previous = null;
+        }
+    }
+
+    /** Goes back to the journal of the previous save, as the save passed to {@link #begin(Fi)} could not be written. */
+    public void failed(Fi save){
+        if(file == null || !file.equals(fileFor(save))) return;
+
+        Fi target = file;
+        write();
+        executor.submit(target::delete);
+        file = previous;
+        previous = null;
+    }
+
+    /**
+     * Writes buffered changes and stops recording, e.g. because another map was loaded.
+     * Units are not compared, as the world may already have been replaced; call {@link #flush()} first if it has not.
+     */
+    public void end(){
+        write();
+        file = null;
+        previous = null;
+    }
+
+    public boolean active(){
+        return file != null;
+    }
+
+    /** Records units that were added or removed since the last flush, then appends all buffered changes to the journal file in the background. */
+    public void flush(){
+        if(file == null) return;
+
+        updateUnits();
+        write();
+    }
+
+    private void write(){
+        if(file == null || buffer.size() == 0) return;
+
+        Fi target = file, last = previous;
+        byte[] bytes = Arrays.copyOf(buffer.getBytes(), buffer.size());
+        buffer.reset();
+
+        executor.submit(() -> {
+            try{
+                target.writeBytes(bytes, true);
+                //the previous save may have been deleted in the meantime
+                if(last != null && last.exists()) last.writeBytes(bytes, true);
+            }catch(Throwable e){
+                Log.err("Failed to write save journal", e);
+            }
+        });
+    }
+
+    /**
+     * Applies the journal of a save that was just loaded, if there is one.
+     * A journal that was cut off while being written is applied up to its last complete change.
+     * @return the number of changes applied.
+     */
+    public static int replay(Fi save) throws IOException{
+        Fi file = fileFor(save);
+        if(!file.exists()) return 0;
+
+        int applied = 0;
+        try(DataInputStream stream = new DataInputStream(file.read(bufferSize))){
+            byte[] bytes = new byte[header.length];
+            stream.readFully(bytes);
+            if(!Arrays.equals(bytes, header)) throw new IOException("Incorrect journal header: " + Arrays.toString(bytes));
+
+            int version = stream.readInt();
+            if(version != SaveJournal.version) throw new IOException("Unknown journal version: " + version);
+
+            SaveIO.getSaveWriter().readContentHeader(stream);
+            Reads read = new Reads(stream);
+
+            while(true){
+                int type = stream.read();
+                if(type == -1) break;
+
+                try{
+                    switch(type){
+                        case typeTile -> applyTile(stream, read);
+                        case typeUnitAdded -> applyUnit(stream, read);
+                        case typeUnitRemoved -> {
+                            Unit unit = Groups.unit.getByID(stream.readInt());
+                            if(unit != null) unit.remove();
+                        }
+                        default -> throw new IOException("Unknown journal entry: " + type);
+                    }
+                }catch(EOFException e){
+                    Log.warn("Save journal @ ends with an incomplete change, which was skipped.", file.name());
+                    break;
+                }
+                applied++;
+            }
+        }finally{
+            content.setTemporaryMapper(null);
+        }
+
+        return applied;
+    }
+
+    static void applyTile(DataInputStream stream, Reads read) throws IOException{
+        int pos = stream.readInt();
+        Block block = content.block(stream.readShort());
+        Team team = Team.get(stream.readUnsignedByte());
+        int rotation = stream.readUnsignedByte();
+        Object config = TypeIO.readObject(read);
+
+        Tile tile = world.tile(pos);
+        if(tile == null) return;
+        if(block == null) block = Blocks.air;
+
+        if(tile.block() != block || tile.team() != team || (tile.build != null && tile.build.rotation != rotation)){
+            tile.setBlock(block, team, rotation);
+        }
+
+        if(config != null && tile.build != null){
+            tile.build.configured(null, config);
+        }
+    }
+
+    static void applyUnit(DataInputStream stream, Reads read) throws IOException{
+        int classId = stream.readUnsignedByte();
+        int id = stream.readInt();
+        int length = stream.readInt();
+
+        if(EntityMapping.map(classId) == null || Groups.unit.getByID(id) != null){
+            stream.skipBytes(length);
+            return;
+        }
+
+        Unit unit = (Unit)EntityMapping.map(classId).get();
+        EntityGroup.checkNextId(id);
+        unit.id(id);
+        unit.read(read);
+        unit.add();
+    }
+
+    void tile(Tile tile){
+        //parts of multiblocks are recorded with their center, and unfinished blocks are only recorded once they are done
+        if(file == null || world.isGenerating() || (tile.build != null && !tile.isCenter()) || tile.block() instanceof ConstructBlock) return;
+
+        //configs are written separately first, as mod blocks may return types that cannot be written; this must never break gameplay
+        entryBuffer.reset();
+        if(tile.build != null){
+            try{
+                TypeIO.writeObject(entryWrite, tile.build.config());
+            }catch(Throwable e){
+                Log.warn("Save journal cannot write the config of @: @", tile.block(), e.toString());
+                entryBuffer.reset();
+            }
+        }
+        if(entryBuffer.size() == 0){
+            TypeIO.writeObject(entryWrite, null);
+        }
+
+        try{
+            stream.writeByte(typeTile);
+            stream.writeInt(tile.pos());
+            stream.writeShort(tile.blockID());
+            stream.writeByte(tile.build == null ? 0 : tile.build.team.id);
+            stream.writeByte(tile.build == null ? 0 : tile.build.rotation);
+            stream.write(entryBuffer.getBytes(), 0, entryBuffer.size());
+        }catch(IOException e){
+            throw new RuntimeException(e);
+        }
+    }
+
+    void updateUnits(){
+        IntSet previous = units;
+        units = lastUnits;
+        lastUnits = previous;
+        units.clear();
+
+        try{
+            for(Unit unit : Groups.unit){
+                if(!unit.serialize()) continue;
+
+                units.add(unit.id());
+                if(lastUnits.remove(unit.id())) continue;
+
+                entryBuffer.reset();
+                unit.write(entryWrite);
+
+                stream.writeByte(typeUnitAdded);
+                stream.writeByte(unit.classId());
+                stream.writeInt(unit.id());
+                stream.writeInt(entryBuffer.size());
+                stream.write(entryBuffer.getBytes(), 0, entryBuffer.size());
+            }
+
+            //units left over were removed in any way since the last flush
+            IntSetIterator it = lastUnits.iterator();
+            while(it.hasNext){
+                stream.writeByte(typeUnitRemoved);
+                stream.writeInt(it.next());
+            }
+        }catch(IOException e){
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -28,4 +28,17 @@ public class SaveMeta{
         this.tags = tags;
         this.mods = JsonIO.read(String[].class, tags.get("mods", "[]"));
     }
+
+    public SaveMeta(StringMap map){
+        this(
+            map.getInt("version"),
+            map.getLong("saved"),
+            map.getLong("playtime"),
+            map.getInt("build"),
+            map.get("mapname"),
+            map.getInt("wave"),
+            JsonIO.read(Rules.class, map.get("rules", "{}")),
+            map
+        );
+    }
 }
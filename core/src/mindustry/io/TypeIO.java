@@ -640,29 +640,19 @@ public class TypeIO{
     }
 
     public static void writeRules(Writes write, Rules rules){
-        String string = JsonIO.write(rules);
-        byte[] bytes = string.getBytes(charset);
-        write.i(bytes.length);
-        write.b(bytes);
+        RulesIO.write(write, rules);
     }
 
     public static Rules readRules(Reads read){
-        int length = read.i();
-        String string = new String(read.b(new byte[length]), charset);
-        return JsonIO.read(Rules.class, string);
+        return RulesIO.read(read);
     }
 
     public static void writeObjectives(Writes write, MapObjectives executor){
-        String string = JsonIO.write(executor);
-        byte[] bytes = string.getBytes(charset);
-        write.i(bytes.length);
-        write.b(bytes);
+        RulesIO.writeObjectives(write, executor);
     }
 
     public static MapObjectives readObjectives(Reads read){
-        int length = read.i();
-        String string = new String(read.b(new byte[length]), charset);
-        return JsonIO.read(MapObjectives.class, string);
+        return RulesIO.readObjectives(read);
     }
 
     public static void writeObjectiveMarker(Writes write, ObjectiveMarker marker){
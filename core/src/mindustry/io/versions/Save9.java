@@ -0,0 +1,278 @@
+package mindustry.io.versions;
+
+import arc.util.io.*;
+import mindustry.content.*;
+import mindustry.io.*;
+import mindustry.world.*;
+
+import java.io.*;
+
+import static mindustry.Vars.*;
+
+/**
+ * Splits the map region into bands of rows. The sizes of the floors and blocks of each band are listed in a table before the data,
+ * so bands can be decoded in parallel. Buildings are still read in order, in a final pass.
+ * Bands are not compressed separately, as the whole save is already compressed in parallel blocks by {@link SaveIO#deflate}.
+ */
+public class Save9 extends SaveVersion{
+    /** Number of tile rows in each band. */
+    public static final int bandHeight = 64;
+
+    private static final int flagEntity = 1, flagData = 2, flagCenter = 4;
+
+    public Save9(){
+        super(9);
+    }
+
+    @Override
+    public void writeMap(DataOutput stream) throws IOException{
+        int width = world.width(), height = world.height(), total = width * height;
+        int bands = (height + bandHeight - 1) / bandHeight;
+
+        //buildings must be written on this thread
+        byte[][] raw = new byte[bands * 2][];
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        for(int band = 0; band < bands; band++){
+            int start = band * bandHeight * width, end = Math.min(start + bandHeight * width, total);
+
+            bytes.reset();
+            writeFloors(out, start, end);
+            raw[band * 2] = bytes.toByteArray();
+
+            bytes.reset();
+            writeBlocks(out, start, end);
+            raw[band * 2 + 1] = bytes.toByteArray();
+        }
+
+        stream.writeShort(width);
+        stream.writeShort(height);
+        stream.writeShort(bandHeight);
+
+        //table of sizes; the offset of each band is the sum of the sizes before it
+        for(byte[] data : raw){
+            stream.writeInt(data.length);
+        }
+
+        for(byte[] data : raw){
+            stream.write(data);
+        }
+    }
+
+    @Override
+    public void readMap(DataInput stream, WorldContext context) throws IOException{
+        int width = stream.readUnsignedShort();
+        int height = stream.readUnsignedShort();
+        int bandHeight = stream.readUnsignedShort();
+        int bands = (height + bandHeight - 1) / bandHeight, total = width * height;
+
+        byte[][] data = new byte[bands * 2][];
+        for(int i = 0; i < data.length; i++){
+            data[i] = new byte[stream.readInt()];
+        }
+        for(byte[] bytes : data){
+            stream.readFully(bytes);
+        }
+
+        short[] floors = new short[total], overlays = new short[total], blocks = new short[total];
+        byte[] flags = new byte[total], tileData = new byte[total];
+        //offset of each building in the block data of its band
+        int[] buildOffsets = new int[total];
+
+        //decode every band into flat arrays; each task only touches the tiles of its own band
+        SaveIO.parallel(data.length, i -> {
+            int start = (i / 2) * bandHeight * width, end = Math.min(start + bandHeight * width, total);
+
+            BandInput input = new BandInput();
+            input.set(data[i], 0);
+            DataInputStream in = new DataInputStream(input);
+
+            if(i % 2 == 0){
+                readFloors(in, start, end, floors, overlays);
+            }else{
+                readBlocks(in, input, start, end, blocks, flags, tileData, buildOffsets);
+            }
+        });
+
+        boolean generating = context.isGenerating();
+
+        if(!generating) context.begin();
+        try{
+
+            context.resize(width, height);
+
+            for(int i = 0; i < total; i++){
+                short floorid = floors[i];
+                if(content.block(floorid) == Blocks.air) floorid = Blocks.stone.id;
+
+                context.create(i % width, i / width, floorid, overlays[i], (short)0);
+            }
+
+            BandInput input = new BandInput();
+            DataInputStream in = new DataInputStream(input);
+
+            for(int i = 0; i < total; i++){
+                Block block = content.block(blocks[i]);
+                Tile tile = context.tile(i);
+                if(block == null) block = Blocks.air;
+                int flag = flags[i];
+
+                if((flag & flagEntity) != 0){
+                    //only the center of a building sets the block and reads its data
+                    if((flag & flagCenter) != 0){
+                        tile.setBlock(block);
+
+                        if(block.hasBuilding()){
+                            try{
+                                input.set(data[(i / width / bandHeight) * 2 + 1], buildOffsets[i]);
+                                byte revision = in.readByte();
+                                tile.build.readAll(Reads.get(in), revision);
+                            }catch(Throwable e){
+                                throw new IOException("Failed to read tile entity of block: " + block, e);
+                            }
+                        }
+
+                        context.onReadBuilding();
+                    }
+                }else{
+                    tile.setBlock(block);
+                    if((flag & flagData) != 0){
+                        tile.data = tileData[i];
+                    }
+                }
+            }
+        }finally{
+            if(!generating) context.end();
+        }
+    }
+
+    void writeFloors(DataOutput stream, int start, int end) throws IOException{
+        for(int i = start; i < end; i++){
+            Tile tile = world.rawTile(i % world.width(), i / world.width());
+            stream.writeShort(tile.floorID());
+            stream.writeShort(tile.overlayID());
+            int consecutives = 0;
+
+            for(int j = i + 1; j < end && consecutives < 255; j++){
+                Tile nextTile = world.rawTile(j % world.width(), j / world.width());
+
+                if(nextTile.floorID() != tile.floorID() || nextTile.overlayID() != tile.overlayID()){
+                    break;
+                }
+
+                consecutives++;
+            }
+
+            stream.writeByte(consecutives);
+            i += consecutives;
+        }
+    }
+
+    void writeBlocks(DataOutput stream, int start, int end) throws IOException{
+        for(int i = start; i < end; i++){
+            Tile tile = world.rawTile(i % world.width(), i / world.width());
+            stream.writeShort(tile.blockID());
+
+            boolean savedata = tile.block().saveData;
+            byte packed = (byte)((tile.build != null ? 1 : 0) | (savedata ? 2 : 0));
+
+            stream.writeByte(packed);
+
+            //only write the entity for multiblocks once - in the center
+            if(tile.build != null){
+                if(tile.isCenter()){
+                    stream.writeBoolean(true);
+                    writeChunk(stream, true, out -> {
+                        out.writeByte(tile.build.version());
+                        tile.build.writeAll(Writes.get(out));
+                    });
+                }else{
+                    stream.writeBoolean(false);
+                }
+            }else if(savedata){
+                stream.writeByte(tile.data);
+            }else{
+                //write consecutive non-entity blocks, which never continue into the next band
+                int consecutives = 0;
+
+                for(int j = i + 1; j < end && consecutives < 255; j++){
+                    Tile nextTile = world.rawTile(j % world.width(), j / world.width());
+
+                    if(nextTile.blockID() != tile.blockID()){
+                        break;
+                    }
+
+                    consecutives++;
+                }
+
+                stream.writeByte(consecutives);
+                i += consecutives;
+            }
+        }
+    }
+
+    static void readFloors(DataInput stream, int start, int end, short[] floors, short[] overlays) throws IOException{
+        for(int i = start; i < end; i++){
+            short floorid = stream.readShort();
+            short oreid = stream.readShort();
+            int consecutives = stream.readUnsignedByte();
+
+            for(int j = i; j <= i + consecutives; j++){
+                floors[j] = floorid;
+                overlays[j] = oreid;
+            }
+
+            i += consecutives;
+        }
+    }
+
+    static void readBlocks(DataInput stream, BandInput input, int start, int end, short[] blocks, byte[] flags, byte[] tileData, int[] buildOffsets) throws IOException{
+        for(int i = start; i < end; i++){
+            short id = stream.readShort();
+            byte packed = stream.readByte();
+            blocks[i] = id;
+
+            if((packed & 1) != 0){
+                boolean center = stream.readBoolean();
+                flags[i] = (byte)(flagEntity | (center ? flagCenter : 0));
+
+                if(center){
+                    int length = stream.readUnsignedShort();
+                    buildOffsets[i] = input.position();
+                    stream.skipBytes(length);
+                }
+            }else if((packed & 2) != 0){
+                flags[i] = flagData;
+                tileData[i] = stream.readByte();
+            }else{
+                int consecutives = stream.readUnsignedByte();
+
+                for(int j = i + 1; j <= i + consecutives; j++){
+                    blocks[j] = id;
+                }
+
+                i += consecutives;
+            }
+        }
+    }
+
+    /** A byte array input that can be moved to any position, so one stream can read every building. */
+    static class BandInput extends ByteArrayInputStream{
+
+        BandInput(){
+            super(new byte[0]);
+        }
+
+        void set(byte[] bytes, int position){
+            buf = bytes;
+            pos = position;
+            count = bytes.length;
+            mark = 0;
+        }
+
+        int position(){
+            return pos;
+        }
+    }
+}
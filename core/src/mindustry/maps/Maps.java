@@ -24,6 +24,7 @@ import mindustry.world.*;
 import mindustry.world.blocks.storage.*;
 
 import java.io.*;
+import java.util.concurrent.atomic.*;
 
 import static mindustry.Vars.*;
 
@@ -49,6 +50,8 @@ public class Maps{
     private @Nullable Map nextMapOverride;
 
     private ObjectSet<Map> previewList = new ObjectSet<>();
+    /** Previews that are still being written; the metadata index is saved once all of them are done. */
+    private final AtomicInteger previewsWriting = new AtomicInteger();
 
     public ShuffleMode getShuffleMode(){
         return shuffleMode;
@@ -169,6 +172,10 @@ public class Maps{
                 Log.err(e);
             }
         });
+
+        if(metaIndex != null){
+            metaIndex.save();
+        }
     }
 
     public void reload(){
@@ -369,8 +376,8 @@ public class Maps{
     public void loadPreviews(){
 
         for(Map map : maps){
-            //try to load preview
-            if(map.previewFile().exists()){
+            //try to load preview, unless the map has changed since it was generated
+            if(map.previewFile().exists() && (metaIndex == null || !metaIndex.previewStale(map.file))){
                 //this may fail, but calls queueNewPreview
                 Core.assets.load(new AssetDescriptor<>(map.previewFile().path() + "." + mapExtension, Texture.class, new MapPreviewParameter(map))).loaded = t -> map.texture = t;
 
@@ -405,14 +412,21 @@ public class Maps{
             //this has to be done synchronously!
             Pixmap pix = MapIO.generatePreview(map);
             map.texture = new Texture(pix);
+            previewsWriting.incrementAndGet();
             mainExecutor.submit(() -> {
                 try{
                     map.previewFile().writePng(pix);
                     writeCache(map);
+                    if(metaIndex != null){
+                        metaIndex.previewed(map.file);
+                    }
                 }catch(Exception e){
                     e.printStackTrace();
                 }finally{
                     pix.dispose();
+                    if(previewsWriting.decrementAndGet() == 0 && metaIndex != null){
+                        metaIndex.save();
+                    }
                 }
             });
         }catch(Exception e){
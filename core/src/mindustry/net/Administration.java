@@ -511,8 +511,14 @@ public class Administration{
         autosave = new Config("autosave", "Whether the periodically save the map when playing.", false),
         autosaveAmount = new Config("autosaveAmount", "The maximum amount of autosaves. Older ones get replaced.", 10),
         autosaveSpacing = new Config("autosaveSpacing", "Spacing between autosaves in seconds.", 60 * 5),
+        autosaveJournal = new Config("autosaveJournal", "Spacing in seconds between writes of block and unit changes since the last autosave to its journal, which is applied when the autosave is loaded. 0 to disable.", 10),
         debug = new Config("debug", "Enable debug logging.", false, () -> Log.level = debug() ? LogLevel.debug : LogLevel.info),
         snapshotInterval = new Config("snapshotInterval", "Client entity snapshot interval in ms.", 200),
+        snapshotRadius = new Config("snapshotRadius", "Distance in tiles around a player's view within which units and bullets are synced every snapshot. Entities further away are synced at a reduced rate. 0 to sync everything.", 0),
+        farSnapshotInterval = new Config("farSnapshotInterval", "How many snapshots pass between updates of units outside a player's snapshot radius. The interval grows with distance. 0 to never sync them.", 10),
+        deltaSnapshots = new Config("deltaSnapshots", "Whether entity snapshots are encoded against the last snapshot each client received, only sending what changed.", false),
+        pathfinderThreads = new Config("pathfinderThreads", "Number of worker threads that compute flow fields in parallel. Applies on the next map load.", 1),
+        compactFlowfields = new Config("compactFlowfields", "Whether flow fields use compact chunked storage, which uses less memory on large maps. Applies on the next map load.", false),
         autoPause = new Config("autoPause", "Whether the game should pause when nobody is online.", false),
         roundExtraTime = new Config("roundExtraTime", "Time before loading a new map after the gameover, in seconds.", 12),
         maxLogLength = new Config("maxLogLength", "The Maximum log file size, in bytes.", 1024 * 1024 * 5);
@@ -13,6 +13,7 @@ import arc.util.Log.*;
 import arc.util.io.*;
 import mindustry.*;
 import mindustry.game.EventType.*;
+import mindustry.gen.*;
 import mindustry.net.Administration.*;
 import mindustry.net.Net.*;
 import mindustry.net.Packets.*;
@@ -23,6 +24,7 @@ import java.net.*;
 import java.nio.*;
 import java.nio.channels.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import static mindustry.Vars.*;
 
@@ -32,6 +34,8 @@ public class ArcNetProvider implements NetProvider{
 
     final Server server;
     final CopyOnWriteArrayList<ArcConnection> connections = new CopyOnWriteArrayList<>();
+    /** Packets received by the server, waiting to be handled on the main thread. */
+    public final ServerQueue serverQueue = new ServerQueue();
     Thread serverThread;
 
     private static final LZ4FastDecompressor decompressor = LZ4Factory.fastestInstance().fastDecompressor();
@@ -79,7 +83,9 @@ public class ArcNetProvider implements NetProvider{
             public void received(Connection connection, Object object){
                 if(!(object instanceof Packet p)) return;
 
+                long time = Time.nanos();
                 Core.app.post(() -> {
+                    Net.stats.waited(p, Time.timeSinceNanos(time));
                     try{
                         net.handleClientReceived(p);
                     }catch(Throwable e){
@@ -121,7 +127,7 @@ public class ArcNetProvider implements NetProvider{
 
                 connection.setArbitraryData(kn);
                 connections.add(kn);
-                Core.app.post(() -> net.handleServerReceived(kn, c));
+                serverQueue.add(kn, c);
             }
 
             @Override
@@ -131,10 +137,7 @@ public class ArcNetProvider implements NetProvider{
                 Disconnect c = new Disconnect();
                 c.reason = reason.toString();
 
-                Core.app.post(() -> {
-                    net.handleServerReceived(k, c);
-                    connections.remove(k);
-                });
+                serverQueue.add(k, c);
             }
 
             @Override
@@ -148,13 +151,10 @@ public class ArcNetProvider implements NetProvider{
                     return;
                 }
 
-                Core.app.post(() -> {
-                    try{
-                        net.handleServerReceived(k, pack);
-                    }catch(Throwable e){
-                        Log.err(e);
-                    }
-                });
+                //the connection is about to be closed, so there is no point in handling anything else
+                if(k.kicked) return;
+
+                serverQueue.add(k, pack);
             }
         });
     }
@@ -335,27 +335,7 @@ public class ArcNetProvider implements NetProvider{
 
         @Override
         public void sendStream(Streamable stream){
-            connection.addListener(new InputStreamSender(stream.stream, 1024){
-                int id;
-
-                @Override
-                protected void start(){
-                    //send an object so the receiving side knows how to handle the following chunks
-                    StreamBegin begin = new StreamBegin();
-                    begin.total = stream.stream.available();
-                    begin.type = Net.getPacketId(stream);
-                    connection.sendTCP(begin);
-                    id = begin.id;
-                }
-
-                @Override
-                protected Object next(byte[] bytes){
-                    StreamChunk chunk = new StreamChunk();
-                    chunk.id = id;
-                    chunk.data = bytes;
-                    return chunk; //wrap the byte[] with an object so the receiving side knows how to handle it.
-                }
-            });
+            connection.addListener(new StreamSender(stream));
         }
 
         @Override
@@ -383,13 +363,166 @@ public class ArcNetProvider implements NetProvider{
         }
     }
 
+    /**
+     * Hands packets received by the server to the main thread in batches, instead of posting a task for each of them.
+     * Connects and disconnects go through the same queue, so that they are handled in order with other packets.
+     */
+    public class ServerQueue{
+        private Seq<ArcConnection> queuedConnections = new Seq<>(ArcConnection.class), batchConnections = new Seq<>(ArcConnection.class);
+        private Seq<Packet> queuedPackets = new Seq<>(Packet.class), batchPackets = new Seq<>(Packet.class);
+        private LongSeq queuedTimes = new LongSeq(), batchTimes = new LongSeq();
+        /** Index of the last client snapshot of each connection in the current batch. */
+        private ObjectIntMap<ArcConnection> lastSnapshots = new ObjectIntMap<>();
+        private boolean posted;
+
+        /** Queues a packet. Called from network threads. */
+        void add(ArcConnection con, Packet packet){
+            boolean post;
+
+            synchronized(this){
+                queuedConnections.add(con);
+                queuedPackets.add(packet);
+                queuedTimes.add(Time.nanos());
+                Net.stats.queueDepth = queuedPackets.size;
+
+                post = !posted;
+                posted = true;
+            }
+
+            if(post){
+                Core.app.post(this::flush);
+            }
+        }
+
+        /** Handles all queued packets. Called on the main thread. */
+        private void flush(){
+            synchronized(this){
+                var connections = queuedConnections;
+                var packets = queuedPackets;
+                var times = queuedTimes;
+
+                queuedConnections = batchConnections;
+                queuedPackets = batchPackets;
+                queuedTimes = batchTimes;
+
+                batchConnections = connections;
+                batchPackets = packets;
+                batchTimes = times;
+
+                posted = false;
+                Net.stats.queueDepth = 0;
+            }
+
+            int size = batchPackets.size;
+
+            //cleared even if a connect or disconnect handler throws, as the lists are reused for the next batch
+            try{
+                //only the newest snapshot of each connection needs to be handled, as it replaces the state of all previous ones
+                lastSnapshots.clear();
+                for(int i = 0; i < size; i++){
+                    if(batchPackets.items[i] instanceof ClientSnapshotCallPacket){
+                        lastSnapshots.put(batchConnections.items[i], i);
+                    }
+                }
+
+                for(int i = 0; i < size; i++){
+                    ArcConnection con = batchConnections.items[i];
+                    Packet packet = batchPackets.items[i];
+
+                    if(packet instanceof ClientSnapshotCallPacket && lastSnapshots.get(con, i) != i){
+                        Net.stats.skipped++;
+                        continue;
+                    }
+
+                    Net.stats.waited(packet, Time.timeSinceNanos(batchTimes.items[i]));
+
+                    if(packet instanceof Connect){
+                        net.handleServerReceived(con, packet);
+                    }else if(packet instanceof Disconnect){
+                        try{
+                            net.handleServerReceived(con, packet);
+                        }finally{
+                            ArcNetProvider.this.connections.remove(con);
+                        }
+                    }else{
+                        try{
+                            net.handleServerReceived(con, packet);
+                        }catch(Throwable e){
+                            Log.err(e);
+                        }
+                    }
+                }
+
+                Net.stats.batches++;
+                Net.stats.maxBatch = Math.max(Net.stats.maxBatch, size);
+            }finally{
+                batchConnections.clear();
+                batchPackets.clear();
+                batchTimes.clear();
+            }
+        }
+    }
+
+    /**
+     * Sends a stream in chunks whenever the connection is idle.
+     * The chunk size starts small and doubles every time the connection has sent everything that was queued,
+     * and halves when data is still queued, so fast connections need fewer packets while slow ones are not flooded.
+     */
+    static class StreamSender implements NetListener{
+        static final int minChunkSize = 1024, maxChunkSize = 8192;
+
+        final Streamable stream;
+        int chunkSize = minChunkSize, id = -1;
+
+        StreamSender(Streamable stream){
+            this.stream = stream;
+        }
+
+        @Override
+        public void idle(Connection connection){
+            if(id == -1){
+                //send an object so the receiving side knows how to handle the following chunks
+                StreamBegin begin = new StreamBegin();
+                begin.total = stream.stream.available();
+                begin.type = Net.getPacketId(stream);
+                connection.sendTCP(begin);
+                id = begin.id;
+            }else if(connection.getTcpWriteBufferSize() == 0){
+                //everything queued was sent before the next poll; the connection keeps up
+                chunkSize = Math.min(chunkSize * 2, maxChunkSize);
+            }else{
+                //data from the previous round is still queued; send less at once
+                chunkSize = Math.max(chunkSize / 2, minChunkSize);
+            }
+
+            while(connection.isIdle()){
+                int available = stream.stream.available();
+                if(available <= 0){
+                    connection.removeListener(this);
+                    return;
+                }
+
+                byte[] bytes = new byte[Math.min(chunkSize, available)];
+                stream.stream.read(bytes, 0, bytes.length);
+
+                StreamChunk chunk = new StreamChunk();
+                chunk.id = id;
+                chunk.data = bytes;
+                connection.sendTCP(chunk);
+            }
+        }
+    }
+
     public static class PacketSerializer implements NetSerializer{
         //for debugging total read/write speeds
         private static final boolean debug = false;
+        //the length of packets is written as an unsigned short
+        private static final int maxPacketSize = 0xffff;
 
-        ThreadLocal<ByteBuffer> decompressBuffer = Threads.local(() -> ByteBuffer.allocate(32768));
-        ThreadLocal<Reads> reads = Threads.local(() -> new Reads(new ByteBufferInput(decompressBuffer.get())));
-        ThreadLocal<Writes> writes = Threads.local(() -> new Writes(new ByteBufferOutput(decompressBuffer.get())));
+        ThreadLocal<SerializeBuffers> buffers = Threads.local(SerializeBuffers::new);
+
+        /** Number of times a buffer for decompressing or compressing packets had to be allocated, and the total bytes allocated. */
+        public static final AtomicLong bufferAllocations = new AtomicLong(), bufferBytesAllocated = new AtomicLong();
 
         //for debugging network write counts
         static WindowedMean upload = new WindowedMean(5), download = new WindowedMean(5);
@@ -414,29 +547,35 @@ public class ArcNetProvider implements NetProvider{
             }else{
                 //read length int, followed by compressed lz4 data
                 Packet packet = Net.newPacket(id);
-                var buffer = decompressBuffer.get();
+                var buffers = this.buffers.get();
+                int begin = byteBuffer.position() - 1;
                 int length = byteBuffer.getShort() & 0xffff;
                 byte compression = byteBuffer.get();
 
-                //no compression, copy over buffer
+                //no compression, read directly from the received data
                 if(compression == 0){
-                    buffer.position(0).limit(length);
-                    buffer.put(byteBuffer.array(), byteBuffer.position(), length);
-                    buffer.position(0);
-                    packet.read(reads.get(), length);
+                    int start = byteBuffer.position(), limit = byteBuffer.limit();
+                    byteBuffer.limit(start + length);
+                    buffers.input.buffer = byteBuffer;
+                    packet.read(buffers.reads, length);
                     //move read packets forward
-                    byteBuffer.position(byteBuffer.position() + buffer.position());
+                    byteBuffer.limit(limit);
+                    byteBuffer.position(start + length);
                 }else{
                     //decompress otherwise
+                    var buffer = buffers.scratch(length);
                     int read = decompressor.decompress(byteBuffer, byteBuffer.position(), buffer, 0, length);
 
                     buffer.position(0);
                     buffer.limit(length);
-                    packet.read(reads.get(), length);
+                    buffers.input.buffer = buffer;
+                    packet.read(buffers.reads, length);
                     //move buffer forward based on bytes read by decompressor
                     byteBuffer.position(byteBuffer.position() + read);
                 }
 
+                buffers.input.buffer = null;
+                Net.stats.read(id & 0xff, length, byteBuffer.position() - begin);
                 return packet;
             }
         }
@@ -455,31 +594,54 @@ public class ArcNetProvider implements NetProvider{
                 writeFramework(byteBuffer, msg);
             }else{
                 if(!(o instanceof Packet pack)) throw new RuntimeException("All sent objects must extend Packet! Class: " + o.getClass());
+                long time = Time.nanos();
                 byte id = Net.getPacketId(pack);
                 byteBuffer.put(id);
 
-                var temp = decompressBuffer.get();
-                temp.position(0);
-                temp.limit(temp.capacity());
-                pack.write(writes.get());
+                //the packet is written directly after space for its length and compression type
+                int header = byteBuffer.position(), start = header + 3, limit = byteBuffer.limit();
+                var buffers = this.buffers.get();
+                boolean inPlace = true;
+                int length;
 
-                short length = (short)temp.position();
+                try{
+                    byteBuffer.position(start);
+                    length = buffers.write(pack, byteBuffer);
+                }catch(BufferOverflowException e){
+                    //the packet may still fit once compressed, so write it somewhere larger first
+                    if(pack instanceof StreamChunk) throw e;
+                    inPlace = false;
+                    length = buffers.writeScratch(pack);
+                    if(length < 36) throw e;
+                }
 
                 //write length, uncompressed
-                byteBuffer.putShort(length);
+                byteBuffer.putShort(header, (short)length);
 
                 //don't bother with small packets
                 if(length < 36 || pack instanceof StreamChunk){
-                    //write direct contents...
-                    byteBuffer.put((byte)0); //0 = no compression
-                    byteBuffer.put(temp.array(), 0, length);
+                    //contents are already in place
+                    byteBuffer.put(header + 2, (byte)0); //0 = no compression
                 }else{
-                    byteBuffer.put((byte)1); //1 = compression
+                    byteBuffer.put(header + 2, (byte)1); //1 = compression
+
+                    //the compressor cannot write over its own input, so move the packet out of the way
+                    if(inPlace){
+                        var temp = buffers.scratch(length);
+                        byteBuffer.position(start);
+                        byteBuffer.limit(start + length);
+                        temp.clear();
+                        temp.put(byteBuffer);
+                        byteBuffer.limit(limit);
+                    }
+
                     //write compressed data; this does not modify position!
-                    int written = compressor.compress(temp, 0, temp.position(), byteBuffer, byteBuffer.position(), byteBuffer.remaining());
+                    int written = compressor.compress(buffers.scratch, 0, length, byteBuffer, start, limit - start);
                     //skip to indicate the written, compressed data
-                    byteBuffer.position(byteBuffer.position() + written);
+                    byteBuffer.position(start + written);
                 }
+
+                Net.stats.wrote(id & 0xff, length, byteBuffer.position() - header + 1, Time.timeSinceNanos(time));
             }
 
             if(debug){
@@ -493,6 +655,91 @@ public class ArcNetProvider implements NetProvider{
             }
         }
 
+        /** Per-thread buffers and streams for reading and writing packets, so that nothing is allocated per packet. */
+        static class SerializeBuffers{
+            final BufferInputStream input = new BufferInputStream();
+            final BufferOutputStream output = new BufferOutputStream();
+            final Reads reads = new Reads(new DataInputStream(input));
+            final Writes writes = new Writes(new DataOutputStream(output));
+            /** Holds decompressed packets, and packets that are about to be compressed. */
+            ByteBuffer scratch = ByteBuffer.allocate(32768);
+
+            /** @return the scratch buffer, grown to hold at least this many bytes. */
+            ByteBuffer scratch(int length){
+                if(scratch.capacity() < length){
+                    scratch = ByteBuffer.allocate(Math.min(Math.max(length, scratch.capacity() * 2), maxPacketSize));
+                    bufferAllocations.incrementAndGet();
+                    bufferBytesAllocated.addAndGet(scratch.capacity());
+                }
+                return scratch;
+            }
+
+            /** Writes a packet at the position of a buffer. @return the number of bytes written */
+            int write(Packet packet, ByteBuffer buffer){
+                int start = buffer.position();
+                output.buffer = buffer;
+                try{
+                    packet.write(writes);
+                }finally{
+                    output.buffer = null;
+                }
+                return buffer.position() - start;
+            }
+
+            /** Writes a packet into the scratch buffer, growing it until the packet fits. @return the number of bytes written */
+            int writeScratch(Packet packet){
+                while(true){
+                    scratch.clear();
+                    try{
+                        return write(packet, scratch);
+                    }catch(BufferOverflowException e){
+                        if(scratch.capacity() >= maxPacketSize) throw e;
+                        scratch(scratch.capacity() * 2);
+                    }
+                }
+            }
+        }
+
+        /** Reads from the remaining bytes of a buffer, which can be swapped out. */
+        static class BufferInputStream extends InputStream{
+            ByteBuffer buffer;
+
+            @Override
+            public int read(){
+                return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length){
+                if(length == 0) return 0;
+                if(!buffer.hasRemaining()) return -1;
+
+                length = Math.min(length, buffer.remaining());
+                buffer.get(bytes, offset, length);
+                return length;
+            }
+
+            @Override
+            public int available(){
+                return buffer.remaining();
+            }
+        }
+
+        /** Writes into a buffer, which can be swapped out. */
+        static class BufferOutputStream extends OutputStream{
+            ByteBuffer buffer;
+
+            @Override
+            public void write(int b){
+                buffer.put((byte)b);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length){
+                buffer.put(bytes, offset, length);
+            }
+        }
+
         public void writeFramework(ByteBuffer buffer, FrameworkMessage message){
             if(message instanceof Ping p){
                 buffer.put((byte)0);
@@ -26,6 +26,9 @@ public class Net{
     private static Seq<Class<? extends Packet>> packetClasses = new Seq<>();
     private static ObjectIntMap<Class<?>> packetToId = new ObjectIntMap<>();
 
+    /** Counters for every packet type sent and received by this process. */
+    public static final NetStats stats = new NetStats();
+
     private boolean server;
     private boolean active;
     private boolean clientLoaded;
@@ -63,6 +66,11 @@ public class Net{
         return (byte)id;
     }
 
+    /** @return the ID of a packet, or -1 if its type is not registered, as with connection events. */
+    public static int findPacketId(Packet packet){
+        return packetToId.get(packet.getClass(), -1);
+    }
+
     public static <T extends Packet> T newPacket(byte id){
         return ((Prov<T>)packetProvs.get(id & 0xff)).get();
     }
@@ -263,6 +271,7 @@ public class Net{
      * Call to handle a packet being received for the client.
      */
     public void handleClientReceived(Packet object){
+        long start = Time.nanos();
         object.handled();
 
         if(object instanceof StreamBegin b){
@@ -293,6 +302,9 @@ public class Net{
                 }else{
                     object.handleClient();
                 }
+
+                //queued packets are recorded once they are replayed
+                stats.handled(object, Time.timeSinceNanos(start));
             }else if(p != Packet.priorityLow){
                 packetQueue.add(object);
             }
@@ -303,6 +315,7 @@ public class Net{
      * Call to handle a packet being received for the server.
      */
     public void handleServerReceived(NetConnection connection, Packet object){
+        long start = Time.nanos();
         object.handled();
 
         try{
@@ -323,6 +336,8 @@ public class Net{
                 //rethrow if not ValidateException
                 throw e;
             }
+        }finally{
+            stats.handled(object, Time.timeSinceNanos(start));
         }
     }
 
@@ -370,7 +385,7 @@ public class Net{
         active = false;
     }
 
-    /** Networking implementation. */
+    /** Networking implementation. Its connections must serialize packets as they are sent; see {@link NetConnection#send}. */
     public interface NetProvider{
         /** Connect to a server. */
         void connectClient(String ip, int port, Runnable success) throws IOException;
@@ -24,14 +24,22 @@ public abstract class NetConnection{
     public int lastReceivedClientSnapshot = -1;
     /** Count of snapshots sent from server. */
     public int snapshotsSent;
+    /** ID of the last entity snapshot the client received completely, used as the baseline for delta snapshots. */
+    public int lastAckedSnapshot = -1;
+    /** Recently sent entity snapshots, used as baselines for delta snapshots. */
+    public SnapshotHistory snapshotHistory = new SnapshotHistory();
     /** Timestamp of last received snapshot. */
     public long lastReceivedClientTime;
-    /** Build requests that have been recently rejected. This is cleared every snapshot. */
-    public Seq<BuildPlan> rejectedRequests = new Seq<>();
+    /** Validated build plans of the client by ID. Client snapshots reference these to set the plan queue. */
+    public IntMap<BuildPlan> plans = new IntMap<>();
     /** Handles chat spam rate limits. */
     public Ratekeeper chatRate = new Ratekeeper();
     /** Handles packet spam rate limits. */
     public Ratekeeper packetRate = new Ratekeeper();
+    /** Handles the rate limit of added build plans. */
+    public Ratekeeper planRate = new Ratekeeper();
+    /** Whether the client confirmed that it loaded the last world it was sent. Build plans are ignored until it has. */
+    public boolean worldConfirmed;
 
     public boolean hasConnected, hasBegunConnecting, hasDisconnected;
     public float viewWidth, viewHeight, viewX, viewY;
@@ -118,6 +126,10 @@ public abstract class NetConnection{
         }
     }
 
+    /**
+     * Sends a packet to this connection. Implementations must serialize the packet before returning, or copy the arrays it holds:
+     * snapshot payloads written by {@link mindustry.core.NetServer} share one array per length, which the next snapshot overwrites.
+     */
     public abstract void send(Object object, boolean reliable);
 
     public abstract void close();
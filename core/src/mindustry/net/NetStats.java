@@ -0,0 +1,171 @@
+package mindustry.net;
+
+import arc.struct.*;
+import arc.util.*;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Network counters for each packet type: how often it was sent and received, its size before and after compression,
+ * and the time spent serializing it, waiting for the main thread and handling it.
+ * Every update is a few atomic additions, so these are always collected.
+ */
+public class NetStats{
+    private static final int types = 256;
+    private static final int
+    sent = 0, sentBytes = 1, sentWire = 2, writeNanos = 3,
+    received = 4, receivedBytes = 5, receivedWire = 6,
+    handled = 7, handleNanos = 8, waited = 9, waitNanos = 10,
+    fields = 11;
+
+    private static final String[] fieldNames = {
+    "sent", "sentBytes", "sentWireBytes", "writeNanos",
+    "received", "receivedBytes", "receivedWireBytes",
+    "handled", "handleNanos", "waited", "waitNanos"
+    };
+
+    private final AtomicLongArray counters = new AtomicLongArray(types * fields);
+    private final String[] names = new String[types];
+    private volatile long resetTime = Time.millis();
+
+    /** Number of received packets waiting for the main thread. */
+    public volatile int queueDepth;
+    /** Number of batches of received packets handled on the main thread, and the largest batch. */
+    public volatile long batches, maxBatch;
+    /** Number of received packets that were dropped because a newer one replaced them. */
+    public volatile long skipped;
+
+    /** Records a packet that was serialized. Packet IDs that are not registered are ignored. */
+    public void wrote(int id, int bytes, int wireBytes, long nanos){
+        if(id < 0) return;
+        add(id, sent, 1);
+        add(id, sentBytes, bytes);
+        add(id, sentWire, wireBytes);
+        add(id, writeNanos, nanos);
+    }
+
+    /** Records a packet that was deserialized. */
+    public void read(int id, int bytes, int wireBytes){
+        if(id < 0) return;
+        add(id, received, 1);
+        add(id, receivedBytes, bytes);
+        add(id, receivedWire, wireBytes);
+    }
+
+    /** Records the time a received packet waited before being handled on the main thread. */
+    public void waited(Packet packet, long nanos){
+        int id = Net.findPacketId(packet);
+        if(id < 0) return;
+        add(id, waited, 1);
+        add(id, waitNanos, nanos);
+    }
+
+    /** Records the time it took to parse and handle a received packet. */
+    public void handled(Packet packet, long nanos){
+        int id = Net.findPacketId(packet);
+        if(id < 0) return;
+        add(id, handled, 1);
+        add(id, handleNanos, nanos);
+    }
+
+    public void reset(){
+        for(int i = 0; i < counters.length(); i++){
+            counters.set(i, 0);
+        }
+        batches = maxBatch = skipped = 0;
+        resetTime = Time.millis();
+    }
+
+    /** @return seconds since the counters were reset. */
+    public float seconds(){
+        return Math.max(Time.timeSinceMillis(resetTime) / 1000f, 0.001f);
+    }
+
+    /** @return a human-readable table of all packet types that were used, sorted by the bytes they sent over the network. */
+    public String report(){
+        float seconds = seconds();
+        var out = new StringBuilder();
+        out.append("Network stats over ").append(Strings.fixed(seconds, 1)).append("s: ")
+        .append(batches).append(" batches, largest ").append(maxBatch).append(", ")
+        .append(queueDepth).append(" queued, ").append(skipped).append(" skipped");
+
+        for(int id : used()){
+            out.append("\n  ").append(name(id)).append(":");
+
+            long sent = get(id, NetStats.sent), received = get(id, NetStats.received), handled = get(id, NetStats.handled), waited = get(id, NetStats.waited);
+            if(sent > 0){
+                out.append(" sent ").append(sent).append(" (").append(Strings.fixed(sent / seconds, 1)).append("/s), ")
+                .append(get(id, sentBytes)).append(" -> ").append(get(id, sentWire)).append(" bytes, ")
+                .append(Strings.fixed(get(id, writeNanos) / 1000f / sent, 1)).append("us to write;");
+            }
+            if(received > 0){
+                out.append(" received ").append(received).append(" (").append(Strings.fixed(received / seconds, 1)).append("/s), ")
+                .append(get(id, receivedWire)).append(" -> ").append(get(id, receivedBytes)).append(" bytes;");
+            }
+            if(handled > 0){
+                out.append(" ").append(Strings.fixed(get(id, handleNanos) / 1000f / handled, 1)).append("us to handle");
+            }
+            if(waited > 0){
+                out.append(", waited ").append(Strings.fixed(get(id, waitNanos) / 1000000f / waited, 2)).append("ms");
+            }
+        }
+
+        return out.toString();
+    }
+
+    /** @return all counters as a single line of JSON. Times are in nanoseconds. */
+    public String toJson(){
+        StringBuilder out = new StringBuilder();
+        out.append("{\"seconds\":").append(seconds())
+        .append(",\"batches\":").append(batches)
+        .append(",\"maxBatch\":").append(maxBatch)
+        .append(",\"queueDepth\":").append(queueDepth)
+        .append(",\"skipped\":").append(skipped)
+        .append(",\"types\":[");
+
+        boolean first = true;
+        for(int id : used()){
+            if(!first) out.append(',');
+            first = false;
+
+            out.append("{\"id\":").append(id).append(",\"name\":\"").append(name(id)).append('"');
+            for(int field = 0; field < fields; field++){
+                out.append(",\"").append(fieldNames[field]).append("\":").append(get(id, field));
+            }
+            out.append('}');
+        }
+
+        return out.append("]}").toString();
+    }
+
+    /** @return IDs of all packet types with any activity, sorted by the bytes they sent, then received. */
+    private Seq<Integer> used(){
+        Seq<Integer> result = new Seq<>();
+        for(int id = 0; id < types; id++){
+            if(get(id, sent) > 0 || get(id, received) > 0 || get(id, handled) > 0){
+                result.add(id);
+            }
+        }
+
+        result.sort((a, b) -> {
+            int bySent = Long.compare(get(b, sentWire), get(a, sentWire));
+            return bySent != 0 ? bySent : Long.compare(get(b, receivedWire), get(a, receivedWire));
+        });
+        return result;
+    }
+
+    private String name(int id){
+        if(names[id] == null){
+            names[id] = Net.newPacket((byte)id).getClass().getSimpleName();
+        }
+        return names[id];
+    }
+
+    private long get(int id, int field){
+        return counters.get(id * fields + field);
+    }
+
+    private void add(int id, int field, long amount){
+        counters.addAndGet(id * fields + field, amount);
+    }
+}
@@ -24,39 +24,48 @@ public class NetworkIO{
     public static void writeWorld(Player player, OutputStream os){
 
         try(DataOutputStream stream = new DataOutputStream(os)){
-            //write all researched content to rules if hosting
-            if(state.isCampaign()){
-                state.rules.researched.clear();
-                for(ContentType type : ContentType.all){
-                    for(Content c : content.getBy(type)){
-                        if(c instanceof UnlockableContent u && u.unlocked() && u.techNode != null){
-                            state.rules.researched.add(u.name);
-                        }
+            writeWorldHeader(player, stream);
+            writeWorldMap(stream);
+        }catch(IOException e){
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Writes the state and player data that precede the map in world data. */
+    public static void writeWorldHeader(Player player, DataOutputStream stream) throws IOException{
+        //write all researched content to rules if hosting
+        if(state.isCampaign()){
+            state.rules.researched.clear();
+            for(ContentType type : ContentType.all){
+                for(Content c : content.getBy(type)){
+                    if(c instanceof UnlockableContent u && u.unlocked() && u.techNode != null){
+                        state.rules.researched.add(u.name);
                     }
                 }
             }
+        }
 
-            stream.writeUTF(JsonIO.write(state.rules));
-            stream.writeUTF(JsonIO.write(state.mapLocales));
-            SaveIO.getSaveWriter().writeStringMap(stream, state.map.tags);
+        stream.writeUTF(JsonIO.write(state.rules));
+        stream.writeUTF(JsonIO.write(state.mapLocales));
+        SaveIO.getSaveWriter().writeStringMap(stream, state.map.tags);
 
-            stream.writeInt(state.wave);
-            stream.writeFloat(state.wavetime);
-            stream.writeDouble(state.tick);
-            stream.writeLong(GlobalVars.rand.seed0);
-            stream.writeLong(GlobalVars.rand.seed1);
+        stream.writeInt(state.wave);
+        stream.writeFloat(state.wavetime);
+        stream.writeDouble(state.tick);
+        stream.writeLong(GlobalVars.rand.seed0);
+        stream.writeLong(GlobalVars.rand.seed1);
 
-            stream.writeInt(player.id);
-            player.write(new Writes(stream));
+        stream.writeInt(player.id);
+        player.write(new Writes(stream));
+    }
 
-            SaveIO.getSaveWriter().writeContentHeader(stream);
-            SaveIO.getSaveWriter().writeMap(stream);
-            SaveIO.getSaveWriter().writeTeamBlocks(stream);
-            SaveIO.getSaveWriter().writeMarkers(stream);
-            SaveIO.getSaveWriter().writeCustomChunks(stream, true);
-        }catch(IOException e){
-            throw new RuntimeException(e);
-        }
+    /** Writes the player-independent map part of world data. */
+    public static void writeWorldMap(DataOutputStream stream) throws IOException{
+        SaveIO.getSaveWriter().writeContentHeader(stream);
+        SaveIO.getSaveWriter().writeMap(stream);
+        SaveIO.getSaveWriter().writeTeamBlocks(stream);
+        SaveIO.getSaveWriter().writeMarkers(stream);
+        SaveIO.getSaveWriter().writeCustomChunks(stream, true);
     }
 
     public static void loadWorld(InputStream is){
@@ -63,6 +63,10 @@ public class Packets{
 
     public static class WorldStream extends Streamable{
 
+        @Override
+        public boolean compressed(){
+            return true;
+        }
     }
 
     /** Marks the beginning of a stream. */
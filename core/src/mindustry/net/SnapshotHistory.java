@@ -0,0 +1,133 @@
+package mindustry.net;
+
+import arc.struct.*;
+import arc.util.*;
+
+import java.io.*;
+
+/**
+ * Ring buffer of recent entity snapshots, holding the sync data of every entity in each of them.
+ * The server keeps one per connection to delta-encode against the last snapshot a client acknowledged,
+ * and clients keep one to decode those deltas.
+ */
+public class SnapshotHistory{
+    /** Maximum number of snapshots kept. Older baselines cannot be used, and require a full snapshot. */
+    public static final int capacity = 16;
+
+    /** Record types of delta snapshots. */
+    public static final byte recordFull = 0, recordDelta = 1, recordSame = 2;
+
+    private final Baseline[] baselines = new Baseline[capacity];
+
+    /** Starts recording a new snapshot, replacing the oldest one. */
+    public Baseline begin(int id){
+        int slot = Math.floorMod(id, capacity);
+        if(baselines[slot] == null) baselines[slot] = new Baseline();
+
+        Baseline base = baselines[slot];
+        base.reset(id);
+        return base;
+    }
+
+    /** @return the snapshot with this ID, or null if it was never recorded or has been replaced. */
+    public @Nullable Baseline get(int id){
+        if(id < 0) return null;
+        Baseline base = baselines[Math.floorMod(id, capacity)];
+        return base != null && base.id == id ? base : null;
+    }
+
+    public void clear(){
+        for(Baseline base : baselines){
+            if(base != null) base.reset(-1);
+        }
+    }
+
+    /**
+     * Writes the XOR of two equally long byte ranges: a bitmask of which bytes differ, followed by the differing bytes.
+     * Applying {@link #readDelta} to the baseline restores the current data.
+     */
+    public static void writeDelta(DataOutput out, byte[] current, int currentOffset, byte[] base, int baseOffset, int length) throws IOException{
+        for(int i = 0; i < length; i += 8){
+            int mask = 0;
+            for(int j = 0; j < 8 && i + j < length; j++){
+                if(current[currentOffset + i + j] != base[baseOffset + i + j]) mask |= 1 << j;
+            }
+            out.writeByte(mask);
+
+            for(int j = 0; j < 8 && i + j < length; j++){
+                if((mask & (1 << j)) != 0) out.writeByte(current[currentOffset + i + j] ^ base[baseOffset + i + j]);
+            }
+        }
+    }
+
+    /** Reads data written by {@link #writeDelta}, applying it to the baseline and writing the result into the output array. */
+    public static void readDelta(DataInput in, byte[] base, int baseOffset, byte[] out, int length) throws IOException{
+        for(int i = 0; i < length; i += 8){
+            int mask = in.readUnsignedByte();
+            for(int j = 0; j < 8 && i + j < length; j++){
+                byte value = base[baseOffset + i + j];
+                out[i + j] = (mask & (1 << j)) != 0 ? (byte)(value ^ in.readByte()) : value;
+            }
+        }
+    }
+
+    /** @return whether two byte ranges of the same length are equal. */
+    public static boolean equal(byte[] a, int aOffset, byte[] b, int bOffset, int length){
+        for(int i = 0; i < length; i++){
+            if(a[aOffset + i] != b[bOffset + i]) return false;
+        }
+        return true;
+    }
+
+    /** Sync data of all entities in a single snapshot. */
+    public static class Baseline{
+        public int id = -1;
+        /** Whether every packet of this snapshot was received. Only used by clients. */
+        public boolean complete;
+
+        private byte[] data = new byte[1024];
+        private int size;
+        private final IntIntMap offsets = new IntIntMap(), lengths = new IntIntMap();
+
+        void reset(int id){
+            this.id = id;
+            complete = false;
+            size = 0;
+            offsets.clear();
+            lengths.clear();
+        }
+
+        /** Records the sync data of an entity. */
+        public void put(int entity, byte[] bytes, int offset, int length){
+            if(size + length > data.length){
+                byte[] next = new byte[Math.max(data.length * 2, size + length)];
+                System.arraycopy(data, 0, next, 0, size);
+                data = next;
+            }
+
+            System.arraycopy(bytes, offset, data, size, length);
+            offsets.put(entity, size);
+            lengths.put(entity, length);
+            size += length;
+        }
+
+        public boolean has(int entity){
+            return offsets.containsKey(entity);
+        }
+
+        /** @return the offset of the entity's data in {@link #data()}. */
+        public int offset(int entity){
+            return offsets.get(entity, -1);
+        }
+
+        /** @return the length of the entity's data, or -1 if it is not part of this snapshot. */
+        public int length(int entity){
+            return lengths.get(entity, -1);
+        }
+
+        /** @return the backing array. Only valid until the next {@link #put}. */
+        public byte[] data(){
+            return data;
+        }
+    }
+}
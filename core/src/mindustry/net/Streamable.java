@@ -1,49 +1,99 @@
 package mindustry.net;
 
+import arc.util.*;
 import mindustry.net.Packets.*;
 
 import java.io.*;
+import java.util.zip.*;
 
 public class Streamable extends Packet{
     public transient ByteArrayInputStream stream;
+    /** Whether {@link #stream} was already inflated while it was received. Only set for streams that are {@link #compressed()}. */
+    public transient boolean inflated;
 
     @Override
     public int getPriority(){
         return priorityHigh;
     }
 
+    /** @return whether the data of this stream is a zlib stream, which is then inflated chunk by chunk as it is received. */
+    public boolean compressed(){
+        return false;
+    }
+
     public static class StreamBuilder{
+        /** Streams are allocated up to this size in advance; larger ones grow as data arrives. */
+        private static final int maxPreallocation = 1024 * 1024 * 8;
+
         public final int id;
         public final byte type;
         public final int total;
-        public final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+
+        private final Streamable result;
+        /** Inflates compressed streams as chunks arrive, so that no time is spent on it once the last one is received. */
+        private final @Nullable Inflater inflater;
+        /** Received data, written in place, so that no copies are made when the stream is built. Compressed data is stored inflated. */
+        private byte[] data;
+        private int size, received;
 
         public StreamBuilder(StreamBegin begin){
             id = begin.id;
             type = begin.type;
             total = begin.total;
+            result = Net.newPacket(type);
+            inflater = result.compressed() ? new Inflater() : null;
+            //inflated data is usually several times larger
+            data = new byte[(int)Math.max(Math.min(inflater == null ? total : total * 4L, maxPreallocation), 0)];
         }
 
         public float progress(){
-            return (float)stream.size() / total;
+            return (float)received / total;
         }
 
         public void add(byte[] bytes){
+            received += bytes.length;
+
+            if(inflater == null){
+                ensureCapacity(size + bytes.length);
+                System.arraycopy(bytes, 0, data, size, bytes.length);
+                size += bytes.length;
+                return;
+            }
+
+            inflater.setInput(bytes);
             try{
-                stream.write(bytes);
-            }catch(IOException e){
-                throw new RuntimeException(e);
+                while(true){
+                    ensureCapacity(size + 1);
+                    int read = inflater.inflate(data, size, data.length - size);
+                    size += read;
+                    //with space left, nothing is inflated only if all input was used or the stream has ended
+                    if(read == 0) break;
+                }
+            }catch(DataFormatException e){
+                throw new RuntimeException("Received invalid compressed stream data.", e);
+            }
+        }
+
+        private void ensureCapacity(int capacity){
+            if(capacity > data.length){
+                byte[] next = new byte[Math.max(inflater == null ? Math.min(data.length * 2, total) : data.length * 2, capacity)];
+                System.arraycopy(data, 0, next, 0, size);
+                data = next;
             }
         }
 
         public Streamable build(){
-            Streamable s = Net.newPacket(type);
-            s.stream = new ByteArrayInputStream(stream.toByteArray());
-            return s;
+            if(inflater != null){
+                inflater.end();
+            }
+
+            result.stream = new ByteArrayInputStream(data, 0, size);
+            result.inflated = inflater != null;
+            return result;
         }
 
         public boolean isDone(){
-            return stream.size() >= total;
+            return received >= total;
         }
     }
 }
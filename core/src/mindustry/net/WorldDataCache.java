@@ -0,0 +1,244 @@
+package mindustry.net;
+
+import arc.*;
+import arc.struct.*;
+import arc.util.*;
+import arc.util.io.*;
+import mindustry.game.EventType.*;
+import mindustry.gen.*;
+import mindustry.io.*;
+import mindustry.net.Packets.*;
+
+import java.io.*;
+import java.util.zip.*;
+
+import static mindustry.Vars.*;
+
+/**
+ * Sends world data to joining players, compressing the map part only once for everyone who joins in the same tick.
+ * The map is serialized on the main thread and compressed on a background thread. Each player then receives a small,
+ * separately compressed header with their own data, followed by the shared map, joined into a single zlib stream.
+ * The header is written in the same tick as the map, so that both describe the same state.
+ */
+public class WorldDataCache{
+    /** Maps that are still being compressed. */
+    private final Seq<MapData> pending = new Seq<>();
+    /** The last compressed map, if it is still valid. */
+    private @Nullable MapData ready;
+    /** Incremented whenever the map changes in a way that makes previously serialized data invalid. */
+    private int generation;
+    /** Incremented whenever another world is loaded. Data of an older world is never delivered. */
+    private int world;
+    /** Players that were sent data of the current world. */
+    private final ObjectSet<Player> sent = new ObjectSet<>();
+
+    public WorldDataCache(){
+        Events.on(TileChangeEvent.class, e -> invalidate());
+        Events.on(ConfigEvent.class, e -> invalidate());
+        Events.on(BuildRotateEvent.class, e -> invalidate());
+        Events.on(BuildTeamChangeEvent.class, e -> invalidate());
+        Events.on(WorldLoadEvent.class, e -> changeWorld());
+        Events.on(ResetEvent.class, e -> changeWorld());
+        Events.on(PlayerLeave.class, e -> sent.remove(e.player));
+    }
+
+    private void changeWorld(){
+        world++;
+        sent.clear();
+        invalidate();
+    }
+
+    /** Marks the cached map as outdated. */
+    public void invalidate(){
+        generation++;
+        ready = null;
+    }
+
+    /**
+     * @return whether serialized data still matches the world. Building state such as items and progress changes every tick
+     * without firing events, so data is only shared while the game has not advanced, e.g. by players joining together or while paused.
+     */
+    private boolean current(MapData data){
+        return data.generation == generation && data.tick == state.tick;
+    }
+
+    /** Sends world data to a player, either immediately or once the current map has been compressed. */
+    public void send(Player player){
+        if(ready != null && !current(ready)){
+            ready = null;
+        }
+
+        if(ready != null){
+            send(player, header(player), ready);
+            return;
+        }
+
+        //players that join while the map is compressed can only share it if nothing has changed since it was written,
+        //as they did not receive the changes that happened before they joined
+        MapData data = pending.find(this::current);
+
+        if(data == null){
+            ReusableByteOutStream out = new ReusableByteOutStream();
+            try(DataOutputStream stream = new DataOutputStream(out)){
+                NetworkIO.writeWorldMap(stream);
+            }catch(IOException e){
+                throw new RuntimeException(e);
+            }
+
+            MapData result = data = new MapData(generation, world);
+            pending.add(result);
+
+            mainExecutor.submit(() -> {
+                try{
+                    result.compressed = compress(out.getBytes(), out.size(), true);
+                }catch(Throwable t){
+                    Log.err("Failed to compress world data", t);
+                }
+                Core.app.post(() -> finish(result));
+            });
+        }
+
+        data.waiting.add(player);
+        data.headers.add(header(player));
+    }
+
+    private void finish(MapData data){
+        pending.remove(data);
+
+        if(data.compressed != null && data.generation == generation){
+            ready = data;
+        }
+
+        //data that is only outdated by block changes is still delivered, as the player receives those changes afterwards
+        boolean stale = data.world != world;
+
+        for(int i = 0; i < data.waiting.size; i++){
+            Player player = data.waiting.get(i);
+            if(player.con == null || !player.con.isConnected()) continue;
+
+            if(!stale){
+                send(player, data.headers.get(i), data);
+            }else if(!sent.contains(player) && !pending.contains(m -> m.waiting.contains(player, true))){
+                //another world was loaded while this one was compressed, and the player has not been sent it yet
+                send(player);
+            }
+        }
+
+        data.waiting.clear();
+        data.headers.clear();
+    }
+
+    /** @return the compressed header with the data of a player, which must be written in the same tick as the map. */
+    private CompressedData header(Player player){
+        ReusableByteOutStream out = new ReusableByteOutStream();
+        try(DataOutputStream stream = new DataOutputStream(out)){
+            NetworkIO.writeWorldHeader(player, stream);
+        }catch(IOException e){
+            throw new RuntimeException(e);
+        }
+
+        return compress(out.getBytes(), out.size(), false);
+    }
+
+    private void send(Player player, CompressedData header, MapData data){
+        byte[] bytes;
+
+        if(data.compressed != null){
+            bytes = join(header, data.compressed);
+        }else{
+            //compression failed, fall back to writing everything at once
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            NetworkIO.writeWorld(player, new FastDeflaterOutputStream(stream));
+            bytes = stream.toByteArray();
+        }
+
+        if(data.world == world){
+            sent.add(player);
+        }
+
+        WorldStream stream = new WorldStream();
+        stream.stream = new ByteArrayInputStream(bytes);
+        player.con.sendStream(stream);
+
+        Log.debug("Packed @ bytes of world data.", bytes.length);
+    }
+
+    /**
+     * Compresses data into a raw deflate stream.
+     * @param last whether this is the end of the stream. If false, the output ends on a byte boundary, so that other
+     * compressed data can follow it.
+     */
+    public static CompressedData compress(byte[] bytes, int length, boolean last){
+        Deflater deflater = new Deflater(last ? Deflater.DEFAULT_COMPRESSION : Deflater.BEST_SPEED, true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length / 4 + 64);
+        byte[] buffer = new byte[8192];
+
+        try{
+            deflater.setInput(bytes, 0, length);
+
+            if(last){
+                deflater.finish();
+                while(!deflater.finished()){
+                    out.write(buffer, 0, deflater.deflate(buffer));
+                }
+            }else{
+                //a full buffer means there may be more output pending
+                int written;
+                do{
+                    written = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                    out.write(buffer, 0, written);
+                }while(written == buffer.length);
+            }
+        }finally{
+            deflater.end();
+        }
+
+        Adler32 adler = new Adler32();
+        adler.update(bytes, 0, length);
+        return new CompressedData(out.toByteArray(), (int)adler.getValue(), length);
+    }
+
+    /** Joins a flushed and a finished raw deflate stream into a zlib stream, as read by {@link InflaterInputStream}. */
+    public static byte[] join(CompressedData first, CompressedData last){
+        byte[] result = new byte[2 + first.bytes.length + last.bytes.length + 4];
+        //zlib header: deflate with a 32K window, no preset dictionary
+        result[0] = 0x78;
+        result[1] = 0x01;
+        System.arraycopy(first.bytes, 0, result, 2, first.bytes.length);
+        System.arraycopy(last.bytes, 0, result, 2 + first.bytes.length, last.bytes.length);
+
+        int adler = SaveIO.combineAdler(first.adler, last.adler, last.length), end = result.length - 4;
+        result[end] = (byte)(adler >>> 24);
+        result[end + 1] = (byte)(adler >>> 16);
+        result[end + 2] = (byte)(adler >>> 8);
+        result[end + 3] = (byte)adler;
+        return result;
+    }
+
+    /** Raw deflate data, with the checksum and length of the data it holds. */
+    public static class CompressedData{
+        public final byte[] bytes;
+        public final int adler, length;
+
+        public CompressedData(byte[] bytes, int adler, int length){
+            this.bytes = bytes;
+            this.adler = adler;
+            this.length = length;
+        }
+    }
+
+    private static class MapData{
+        final int generation, world;
+        /** The game tick in which the map was serialized. */
+        final double tick = state.tick;
+        final Seq<Player> waiting = new Seq<>();
+        /** Headers of the waiting players, in the same order. */
+        final Seq<CompressedData> headers = new Seq<>();
+        volatile @Nullable CompressedData compressed;
+
+        MapData(int generation, int world){
+            this.generation = generation;
+            this.world = world;
+        }
+    }
+}
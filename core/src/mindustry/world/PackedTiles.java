@@ -0,0 +1,191 @@
+package mindustry.world;
+
+import arc.files.*;
+import arc.func.*;
+import arc.struct.*;
+import arc.util.io.*;
+import mindustry.content.*;
+import mindustry.game.*;
+import mindustry.gen.*;
+import mindustry.io.*;
+import mindustry.world.blocks.environment.*;
+
+import java.io.*;
+import java.util.zip.*;
+
+import static mindustry.Vars.*;
+
+/**
+ * Tiles of a map stored as arrays of content IDs, instead of one {@link Tile} object per position.
+ * Used to read maps that are only inspected, such as for previews, without creating a world.
+ * The running world still uses {@link Tiles}, as tiles there are held by buildings and units and compared by identity.
+ * Every tile covered by a building stores the block and team of that building.
+ */
+public class PackedTiles{
+    public final int width, height;
+    public final short[] floors, overlays, blocks;
+    public final byte[] teams, data;
+    /** Indices of the center tiles of all buildings. */
+    public final IntSeq buildings = new IntSeq();
+
+    public PackedTiles(int width, int height){
+        this.width = width;
+        this.height = height;
+        floors = new short[width * height];
+        overlays = new short[width * height];
+        blocks = new short[width * height];
+        teams = new byte[width * height];
+        data = new byte[width * height];
+    }
+
+    /** Reads the tiles of a map or save file. */
+    public static PackedTiles read(Fi file) throws IOException{
+        try(InputStream is = new InflaterInputStream(file.read(bufferSize)); CounterInputStream counter = new CounterInputStream(is); DataInputStream stream = new DataInputStream(counter)){
+            SaveIO.readHeader(stream);
+            int version = stream.readInt();
+            SaveVersion ver = SaveIO.getSaveWriter(version);
+            if(ver == null) throw new IOException("Unknown save version: " + version);
+
+            Reader reader = new Reader();
+            ver.region("meta", stream, counter, ver::readStringMap);
+            ver.region("content", stream, counter, ver::readContentHeader);
+            ver.region("preview_map", stream, counter, in -> ver.readMap(in, reader));
+            reader.view.store();
+            return reader.tiles;
+        }finally{
+            content.setTemporaryMapper(null);
+        }
+    }
+
+    public int index(int x, int y){
+        return x + y * width;
+    }
+
+    public Floor floor(int index){
+        return byId(floors[index]).asFloor();
+    }
+
+    public Floor overlay(int index){
+        return byId(overlays[index]).asFloor();
+    }
+
+    public Block block(int index){
+        return byId(blocks[index]);
+    }
+
+    /** @return the block with an ID of the running build, or air if there is none. The temporary mapper of a file being read is not used. */
+    static Block byId(short id){
+        Seq<Block> blocks = content.blocks();
+        return id >= 0 && id < blocks.size ? blocks.get(id) : Blocks.air;
+    }
+
+    public Team team(int index){
+        return Team.get(teams[index] & 0xff);
+    }
+
+    /** Receives tiles from {@link SaveVersion#readMap}, using a single tile that is moved to every position it asks for. */
+    static class Reader implements WorldContext{
+        PackedTiles tiles;
+        final View view = new View();
+
+        @Override
+        public Tile tile(int index){
+            return view.set(index);
+        }
+
+        @Override
+        public void resize(int width, int height){
+            tiles = new PackedTiles(width, height);
+            view.tiles = tiles;
+        }
+
+        @Override
+        public Tile create(int x, int y, int floorID, int overlayID, int wallID){
+            //the IDs are those of the file, and must be resolved while its content mapper is still set
+            int index = tiles.index(x, y);
+            tiles.floors[index] = id(floorID);
+            tiles.overlays[index] = id(overlayID);
+            tiles.blocks[index] = id(wallID);
+            return view.set(index);
+        }
+
+        static short id(int fileID){
+            Block block = content.block(fileID);
+            return block == null ? Blocks.air.id : block.id;
+        }
+
+        @Override
+        public boolean isGenerating(){
+            return false;
+        }
+
+        @Override
+        public void begin(){
+        }
+
+        @Override
+        public void end(){
+        }
+
+        @Override
+        public void onReadBuilding(){
+            Building build = view.build;
+            if(build == null) return;
+
+            //the building's team is only known once it is read, so its area is filled here
+            int size = build.block.size, offset = -(size - 1) / 2;
+            for(int dx = 0; dx < size; dx++){
+                for(int dy = 0; dy < size; dy++){
+                    int x = view.x + dx + offset, y = view.y + dy + offset;
+                    if(x >= 0 && y >= 0 && x < tiles.width && y < tiles.height){
+                        int index = tiles.index(x, y);
+                        tiles.blocks[index] = build.block.id;
+                        tiles.teams[index] = (byte)build.team.id;
+                    }
+                }
+            }
+
+            tiles.buildings.add(view.index);
+        }
+    }
+
+    /** A tile that reads from and writes to the arrays. Multiblocks do not affect other tiles, unlike in the world. */
+    static class View extends CachedTile{
+        PackedTiles tiles;
+        int index = -1;
+
+        View set(int index){
+            store();
+
+            this.index = index;
+            x = (short)(index % tiles.width);
+            y = (short)(index / tiles.width);
+            floor = tiles.floor(index);
+            overlay = tiles.overlay(index);
+            block = tiles.block(index);
+            data = tiles.data[index];
+            build = null;
+            return this;
+        }
+
+        /** Writes back the data of the current tile, which is set by the reader after the block. */
+        void store(){
+            if(index != -1){
+                tiles.data[index] = data;
+            }
+        }
+
+        @Override
+        public void setBlock(Block type, Team team, int rotation, Prov<Building> entityprov){
+            block = type;
+            changeBuild(team, entityprov, rotation);
+            if(build != null){
+                build.team = team;
+                build.rotation = rotation;
+            }
+
+            tiles.blocks[index] = type.id;
+            tiles.teams[index] = (byte)team.id;
+        }
+    }
+}
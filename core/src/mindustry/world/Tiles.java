@@ -3,6 +3,7 @@ package mindustry.world;
 import arc.func.*;
 import arc.math.*;
 import arc.math.geom.*;
+import arc.struct.*;
 import arc.util.*;
 import mindustry.gen.*;
 
@@ -13,31 +14,38 @@ public class Tiles implements Iterable<Tile>{
     public final int width, height;
 
     final Tile[] array;
-    final Puddle[] puddles;
-    final Fire[] fires;
+    /** Puddles and fires by tile index. Few tiles have them, so they are not stored per tile. */
+    final IntMap<Puddle> puddles = new IntMap<>();
+    final IntMap<Fire> fires = new IntMap<>();
 
     public Tiles(int width, int height){
         this.array = new Tile[width * height];
         this.width = width;
         this.height = height;
-        this.puddles = new Puddle[width * height];
-        this.fires = new Fire[width * height];
     }
 
     public Puddle getPuddle(int pos){
-        return puddles[pos];
+        return puddles.get(pos);
     }
 
     public void setPuddle(int pos, Puddle p){
-        puddles[pos] = p;
+        if(p == null){
+            puddles.remove(pos);
+        }else{
+            puddles.put(pos, p);
+        }
     }
 
     public @Nullable Fire getFire(int pos){
-        return fires[pos];
+        return fires.get(pos);
     }
 
     public void setFire(int pos, Fire f){
-        fires[pos] = f;
+        if(f == null){
+            fires.remove(pos);
+        }else{
+            fires.put(pos, f);
+        }
     }
 
 
@@ -30,6 +30,7 @@ import java.net.*;
 import java.time.*;
 import java.time.format.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import static arc.util.ColorCodes.*;
 import static arc.util.Log.*;
@@ -47,6 +48,13 @@ public class ServerControl implements ApplicationListener{
     public final Fi logFolder = Core.settings.getDataDirectory().child("logs/");
 
     private final Interval autosaveCount = new Interval();
+    private final ExecutorService autosaveExecutor = Threads.executor("Autosave", 1);
+    private @Nullable Future<?> autosaveTask;
+    private final SaveJournal journal = new SaveJournal(autosaveExecutor);
+    private final Interval journalCount = new Interval();
+
+    /** Time in nanoseconds that the last autosave blocked the game thread, and that it took to compress and write. */
+    public volatile long lastAutosavePause, lastAutosaveWrite;
 
     public Runnable serverInput = () -> {
         Scanner scan = new Scanner(System.in);
@@ -213,38 +221,82 @@ public class ServerControl implements ApplicationListener{
         //reset autosave on world load
         Events.on(WorldLoadEvent.class, e -> {
             autosaveCount.reset(0, Config.autosaveSpacing.num() * 60);
+            //changes to a new world do not belong to the last autosave
+            journal.end();
         });
 
         //autosave periodically
         Events.run(Trigger.update, () -> {
+            if(journal.active()){
+                if(Config.autosaveJournal.num() <= 0){
+                    journal.flush();
+                    journal.end();
+                }else if(journalCount.get(Config.autosaveJournal.num() * 60)){
+                    journal.flush();
+                }
+            }
+
             if(state.isPlaying() && Config.autosave.bool()){
                 if(autosaveCount.get(Config.autosaveSpacing.num() * 60)){
+                    //the previous autosave is still being written; don't queue up more
+                    if(autosaveTask != null && !autosaveTask.isDone()){
+                        warn("Skipping autosave, as the previous one is still being written.");
+                        return;
+                    }
+
                     int max = Config.autosaveAmount.num();
 
                     //use map file name to make sure it can be saved
                     String mapName = (state.map.file == null ? "unknown" : state.map.file.nameWithoutExtension()).replace(" ", "_");
                     String date = autosaveDate.format(LocalDateTime.now());
 
-                    Seq<Fi> autosaves = saveDirectory.findAll(f -> f.name().startsWith("auto_"));
-                    autosaves.sort(f -> -f.lastModified());
-
-                    //delete older saves
-                    if(autosaves.size >= max){
-                        for(int i = max - 1; i < autosaves.size; i++){
-                            autosaves.get(i).delete();
-                        }
-                    }
-
                     String fileName = "auto_" + mapName + "_" + date + "." + saveExtension;
                     Fi file = saveDirectory.child(fileName);
                     info("Autosaving...");
 
+                    byte[] snapshot;
+                    long start = Time.nanos();
+
                     try{
-                        SaveIO.save(file);
-                        info("Autosave completed.");
+                        //capture the world on this thread; compression and disk access happen in the background
+                        snapshot = SaveIO.snapshot();
                     }catch(Throwable e){
                         err("Autosave failed.", e);
+                        return;
                     }
+
+                    lastAutosavePause = Time.timeSinceNanos(start);
+
+                    if(Config.autosaveJournal.num() > 0){
+                        journal.begin(file);
+                    }
+
+                    autosaveTask = autosaveExecutor.submit(() -> {
+                        long writeStart = Time.nanos();
+                        try{
+                            SaveIO.writeSnapshot(file, snapshot);
+                        }catch(Throwable e){
+                            err("Autosave failed.", e);
+                            //keep recording changes for the last save that was written
+                            Core.app.post(() -> journal.failed(file));
+                            return;
+                        }
+                        lastAutosaveWrite = Time.timeSinceNanos(writeStart);
+                        Core.app.post(() -> journal.saved(file));
+
+                        //delete older saves only once the new one is safely written
+                        Seq<Fi> autosaves = saveDirectory.findAll(f -> f.name().startsWith("auto_") && f.extension().equals(saveExtension));
+                        autosaves.sort(f -> -f.lastModified());
+
+                        for(int i = max; i < autosaves.size; i++){
+                            autosaves.get(i).delete();
+                            SaveIO.backupFileFor(autosaves.get(i)).delete();
+                            SaveJournal.fileFor(autosaves.get(i)).delete();
+                        }
+
+                        info("Autosave completed: @ KB, game paused for @ms, written in @ms.",
+                            snapshot.length / 1024, Strings.fixed(lastAutosavePause / 1000000f, 1), Strings.fixed(lastAutosaveWrite / 1000000f, 1));
+                    });
                 }
             }
         });
@@ -442,7 +494,7 @@ public class ServerControl implements ApplicationListener{
             info("Map directory: &fi@", customMapDirectory.file().getAbsoluteFile().toString());
         });
 
-        handler.register("reloadmaps", "Reload all maps from disk.", arg -> {
+        handler.register("reloadmaps", "Reload all maps from disk. Maps that have not changed are read from the metadata index.", arg -> {
             int beforeMaps = maps.all().size;
             maps.reload();
             if(maps.all().size > beforeMaps){
@@ -479,6 +531,35 @@ public class ServerControl implements ApplicationListener{
             }
         });
 
+        handler.register("asynctimes", "Display per-stage timings of the last async logic frame.", arg -> {
+            if(state.isMenu()){
+                err("Not hosting. Host a game first.");
+                return;
+            }
+
+            info(asyncCore.timingReport());
+        });
+
+        handler.register("pathstats", "Display unit command pathfinding statistics.", arg -> {
+            info("Path requests: @ (@ searched, @ per search)", controlPath.requestsReceived, controlPath.requestsComputed, Strings.fixed(controlPath.coalescingRatio(), 2));
+            info("Average request latency: @ms", Strings.fixed(controlPath.requestLatency, 2));
+        });
+
+        handler.register("netstats", "[json/reset]", "Display network statistics for each packet type, as text or JSON.", arg -> {
+            if(arg.length == 0){
+                info(Net.stats.report());
+                info("Buffers: @ allocated (@ KB), snapshot payloads @ reused / @ allocated",
+                    ArcNetProvider.PacketSerializer.bufferAllocations.get(), ArcNetProvider.PacketSerializer.bufferBytesAllocated.get() / 1024, netServer.payloadsReused, netServer.payloadsAllocated);
+            }else if(arg[0].equals("json")){
+                info(Net.stats.toJson());
+            }else if(arg[0].equals("reset")){
+                Net.stats.reset();
+                info("Network statistics reset.");
+            }else{
+                err("Invalid usage. Use 'json' or 'reset'.");
+            }
+        });
+
         handler.register("mods", "Display all loaded mods.", arg -> {
             if(!mods.list().isEmpty()){
                 info("Mods:");
@@ -579,7 +660,7 @@ public class ServerControl implements ApplicationListener{
                 }
 
                 Core.settings.put("globalrules", base.toString());
-                Call.setRules(state.rules);
+                netServer.syncRules();
             }
         });
 
@@ -925,7 +1006,7 @@ public class ServerControl implements ApplicationListener{
                 return;
             }
 
-            Fi newestSave = saveDirectory.findAll(f -> f.name().startsWith("auto_")).min(Fi::lastModified);
+            Fi newestSave = saveDirectory.findAll(f -> f.name().startsWith("auto_") && f.extension().equals(saveExtension)).max(Fi::lastModified);
 
             if(newestSave == null){
                 err("No auto-saves found! Type `config autosave true` to enable auto-saves.");
@@ -941,6 +1022,7 @@ public class ServerControl implements ApplicationListener{
                 try{
                     SaveIO.load(newestSave);
                     state.rules.sector = null;
+                    replayJournal(newestSave);
                     info("Save loaded.");
                     state.set(State.playing);
                     netServer.openServer();
@@ -967,6 +1049,7 @@ public class ServerControl implements ApplicationListener{
                 try{
                     SaveIO.load(file);
                     state.rules.sector = null;
+                    replayJournal(file);
                     info("Save loaded.");
                     state.set(State.playing);
                     netServer.openServer();
@@ -994,9 +1077,16 @@ public class ServerControl implements ApplicationListener{
             info("Save files: ");
             for(Fi file : saveDirectory.list()){
                 if(file.extension().equals(saveExtension)){
-                    info("| @", file.nameWithoutExtension());
+                    try{
+                        //read from the metadata index, so this doesn't open every save
+                        StringMap meta = SaveIO.getIndexed(file).tags;
+                        info("| @: &fi@, wave @", file.nameWithoutExtension(), meta.get("mapname", "unknown"), meta.getInt("wave"));
+                    }catch(Throwable e){
+                        info("| @: &fiinvalid", file.nameWithoutExtension());
+                    }
                 }
             }
+            metaIndex.save();
         });
 
         handler.register("gameover", "Force a game over.", arg -> {
@@ -1063,6 +1153,18 @@ public class ServerControl implements ApplicationListener{
         mods.eachClass(p -> p.registerServerCommands(handler));
     }
 
+    /** Applies the changes recorded after a save was written. A journal that cannot be read is skipped, keeping the save as it is. */
+    private void replayJournal(Fi save){
+        try{
+            int changes = SaveJournal.replay(save);
+            if(changes > 0){
+                info("Applied @ changes from the save journal.", changes);
+            }
+        }catch(Throwable e){
+            err("Failed to apply save journal.", e);
+        }
+    }
+
     public void handleCommandString(String line){
         CommandResponse response = handler.handleMessage(line);
 
@@ -1174,6 +1276,22 @@ public class ServerControl implements ApplicationListener{
         currentLogFile.writeString(text + "\n", true);
     }
 
+    @Override
+    public void dispose(){
+        //the autosave thread does not keep the application alive, so wait for queued saves and journal changes to be written
+        journal.flush();
+        journal.end();
+        autosaveExecutor.shutdown();
+
+        try{
+            if(!autosaveExecutor.awaitTermination(30, TimeUnit.SECONDS)){
+                warn("Autosave writes did not finish before shutting down.");
+            }
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
     public void toggleSocket(boolean on){
         if(on && socketThread == null){
             socketThread = new Thread(() -> {
@@ -1,6 +1,7 @@
 import arc.*;
 import arc.backend.headless.*;
 import arc.files.*;
+import arc.math.*;
 import arc.math.geom.*;
 import arc.struct.*;
 import arc.util.*;
@@ -8,6 +9,8 @@ import arc.util.io.*;
 import arc.util.serialization.*;
 import arc.util.serialization.JsonValue.*;
 import mindustry.*;
+import mindustry.ai.*;
+import mindustry.ai.Pathfinder.*;
 import mindustry.content.*;
 import mindustry.core.*;
 import mindustry.core.GameState.*;
@@ -17,6 +20,7 @@ import mindustry.game.*;
 import mindustry.gen.*;
 import mindustry.io.*;
 import mindustry.io.SaveIO.*;
+import mindustry.io.versions.*;
 import mindustry.maps.*;
 import mindustry.mod.*;
 import mindustry.mod.Mods.*;
@@ -33,6 +37,8 @@ import org.junit.jupiter.params.provider.*;
 
 import java.io.*;
 import java.nio.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
 
 import static mindustry.Vars.*;
 import static org.junit.jupiter.api.Assertions.*;
@@ -189,6 +195,61 @@ public class ApplicationTests{
         assertEquals(string, con.name);
     }
 
+    @Test
+    void serializePackets(){
+        ArcNetProvider.PacketSerializer serializer = new ArcNetProvider.PacketSerializer();
+
+        //short messages are sent uncompressed, long ones compressed, and the longest do not fit before compression
+        for(String message : new String[]{"hi", "a".repeat(300), "b".repeat(3000)}){
+            ByteBuffer buffer = ByteBuffer.allocate(1000);
+            buffer.position(5);
+
+            SendChatMessageCallPacket pack = new SendChatMessageCallPacket();
+            pack.message = message;
+            serializer.write(buffer, pack);
+            int length = buffer.position();
+
+            buffer.position(5);
+            Object result = serializer.read(buffer);
+
+            assertEquals(length, buffer.position(), "entire packet read");
+            assertTrue(result instanceof SendChatMessageCallPacket);
+            ((SendChatMessageCallPacket)result).handled();
+            assertEquals(message, ((SendChatMessageCallPacket)result).message);
+        }
+    }
+
+    @Test
+    void streamBuilderInflates() throws IOException{
+        byte[] data = new byte[100000];
+        for(int i = 0; i < data.length; i++){
+            data[i] = (byte)(i % 7 == 0 ? i * 31 : i / 50);
+        }
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try(DeflaterOutputStream out = new DeflaterOutputStream(compressed)){
+            out.write(data);
+        }
+        byte[] bytes = compressed.toByteArray();
+
+        StreamBegin begin = new StreamBegin();
+        begin.total = bytes.length;
+        begin.type = Net.getPacketId(new WorldStream());
+        Streamable.StreamBuilder builder = new Streamable.StreamBuilder(begin);
+
+        for(int i = 0; i < bytes.length; i += 1000){
+            assertFalse(builder.isDone());
+            byte[] chunk = new byte[Math.min(1000, bytes.length - i)];
+            System.arraycopy(bytes, i, chunk, 0, chunk.length);
+            builder.add(chunk);
+        }
+        assertTrue(builder.isDone());
+
+        Streamable result = builder.build();
+        assertTrue(result.inflated);
+        assertArrayEquals(data, result.stream.readAllBytes());
+    }
+
     @Test
     void writeRules(){
         ByteBuffer buffer = ByteBuffer.allocate(1000);
@@ -205,6 +266,31 @@ public class ApplicationTests{
         assertEquals(rules.attackMode, res.attackMode);
     }
 
+    @Test
+    void writeRuleFields(){
+        Rules rules = new Rules();
+        rules.spawns.add(new SpawnGroup(UnitTypes.dagger));
+        byte[][] baseline = RulesIO.encode(rules);
+
+        rules.fog = true;
+        rules.unitCap = 40;
+        byte[][] encoded = RulesIO.encode(rules);
+        assertTrue(RulesIO.changed(encoded, baseline));
+
+        ReusableByteOutStream out = new ReusableByteOutStream();
+        RulesIO.write(new Writes(new DataOutputStream(out)), encoded, baseline);
+        //two primitive fields only
+        assertTrue(out.size() < 32, "delta too large: " + out.size());
+
+        Rules res = new Rules();
+        res.spawns.add(new SpawnGroup(UnitTypes.dagger));
+        RulesIO.read(new Reads(new DataInputStream(new ByteArrayInputStream(out.toByteArray()))), res);
+
+        assertTrue(res.fog);
+        assertEquals(40, res.unitCap);
+        assertEquals(1, res.spawns.size);
+    }
+
     @Test
     void writeRules2(){
         Rules rules = new Rules();
@@ -617,6 +703,95 @@ public class ApplicationTests{
         assertNotEquals(0, itemsa[0]);
     }
 
+    @Test
+    void flowfieldRepairMatchesFullUpdate() throws InterruptedException{
+        world.loadMap(testMap);
+        state.set(State.playing);
+
+        Flowfield field = pathfinder.getField(state.rules.waveTeam, Pathfinder.costGround, Pathfinder.fieldCore);
+        awaitCompletion(field, field.completions);
+        assertTrue(field.hasCompleteWeights());
+
+        Rand rand = new Rand(0);
+        boolean wasIncremental = Pathfinder.incrementalRepair;
+
+        try{
+            Pathfinder.incrementalRepair = true;
+            for(int i = 0; i < 10; i++){
+                toggleWall(field, rand);
+            }
+
+            int size = world.width() * world.height();
+            int[] repaired = new int[size];
+            for(int i = 0; i < size; i++){
+                repaired[i] = field.completeWeights.get(i);
+            }
+
+            //placing and removing a wall leaves the map as it was, and updates the field from scratch
+            Pathfinder.incrementalRepair = false;
+            Tile tile = toggleWall(field, rand);
+            int before = field.completions;
+            tile.setBlock(tile.block() == Blocks.air ? Blocks.copperWall : Blocks.air, Team.sharded);
+            awaitCompletion(field, before);
+
+            for(int i = 0; i < size; i++){
+                assertEquals(field.completeWeights.get(i), repaired[i], "weight at " + world.tiles.geti(i));
+            }
+        }finally{
+            Pathfinder.incrementalRepair = wasIncremental;
+        }
+    }
+
+    @Test
+    @Tag("benchmark")
+    void flowfieldRepairBenchmark() throws InterruptedException{
+        world.loadMap(testMap);
+        state.set(State.playing);
+
+        Flowfield field = pathfinder.getField(state.rules.waveTeam, Pathfinder.costGround, Pathfinder.fieldCore);
+        awaitCompletion(field, field.completions);
+
+        Rand rand = new Rand(0);
+        int edits = 100;
+        boolean wasIncremental = Pathfinder.incrementalRepair;
+
+        try{
+            for(boolean incremental : new boolean[]{false, true}){
+                Pathfinder.incrementalRepair = incremental;
+
+                long start = Time.nanos();
+                for(int i = 0; i < edits; i++){
+                    toggleWall(field, rand);
+                }
+
+                Log.info("@: @ms average time to complete flow field after an edit", incremental ? "Incremental repair" : "Full update", Strings.fixed(Time.timeSinceNanos(start) / 1000000f / edits, 2));
+            }
+        }finally{
+            Pathfinder.incrementalRepair = wasIncremental;
+        }
+    }
+
+    /** Places a wall on a random empty tile, or removes one, and waits for the field to update. */
+    static Tile toggleWall(Flowfield field, Rand rand) throws InterruptedException{
+        while(true){
+            Tile tile = world.tile(rand.random(world.width() - 1), rand.random(world.height() - 1));
+            if(tile.block() != Blocks.air && tile.block() != Blocks.copperWall) continue;
+
+            int before = field.completions;
+            tile.setBlock(tile.block() == Blocks.air ? Blocks.copperWall : Blocks.air, Team.sharded);
+            awaitCompletion(field, before);
+            return tile;
+        }
+    }
+
+    static void awaitCompletion(Flowfield field, int completions) throws InterruptedException{
+        long start = Time.millis();
+        while(field.completions == completions){
+            if(Time.timeSinceMillis(start) > 5000) fail("Flow field did not complete in time.");
+            Thread.sleep(1);
+        }
+    }
+
     @Test
     void load77Save(){
         resetWorld();
@@ -872,6 +1047,196 @@ public class ApplicationTests{
         checkPayloads();
     }
 
+    @Test
+    void saveLoadMapBands(){
+        //not a multiple of the band height, with buildings crossing band borders
+        Tiles tiles = world.resize(70, Save9.bandHeight * 2 + 13);
+
+        world.beginMapLoad();
+        for(int x = 0; x < tiles.width; x++){
+            for(int y = 0; y < tiles.height; y++){
+                tiles.set(x, y, new Tile(x, y, (x + y) % 3 == 0 ? Blocks.sand : Blocks.stone, y % 5 == 0 ? Blocks.oreCopper : Blocks.air, Blocks.air));
+            }
+        }
+
+        tiles.getn(10, Save9.bandHeight).setBlock(Blocks.coreShard, Team.sharded);
+        tiles.getn(30, Save9.bandHeight * 2).setBlock(Blocks.container, Team.sharded);
+        tiles.getn(40, Save9.bandHeight - 1).setBlock(Blocks.copperWall, Team.sharded);
+        for(int x = 0; x < tiles.width; x++){
+            tiles.getn(x, tiles.height - 1).setBlock(Blocks.stoneWall);
+        }
+        world.endMapLoad();
+
+        tiles.getn(30, Save9.bandHeight * 2).build.items.add(Items.copper, 123);
+
+        short[] floors = new short[tiles.width * tiles.height], overlays = new short[floors.length], blocks = new short[floors.length];
+        for(int i = 0; i < floors.length; i++){
+            Tile tile = tiles.geti(i);
+            floors[i] = tile.floorID();
+            overlays[i] = tile.overlayID();
+            blocks[i] = tile.blockID();
+        }
+
+        SaveIO.write(saveDirectory.child("bands.msav"));
+        logic.reset();
+        SaveIO.load(saveDirectory.child("bands.msav"));
+
+        assertEquals(70, world.width());
+        for(int i = 0; i < floors.length; i++){
+            Tile tile = world.tiles.geti(i);
+            assertEquals(floors[i], tile.floorID(), "floor of " + tile);
+            assertEquals(overlays[i], tile.overlayID(), "overlay of " + tile);
+            assertEquals(blocks[i], tile.blockID(), "block of " + tile);
+        }
+
+        assertEquals(123, world.tile(30, Save9.bandHeight * 2).build.items.get(Items.copper));
+    }
+
+    @Test
+    void parallelDeflate() throws IOException{
+        Rand rand = new Rand(9);
+
+        for(int length : new int[]{0, 1, SaveIO.deflateBlockSize, SaveIO.deflateBlockSize * 3 + 17}){
+            byte[] data = new byte[length];
+            for(int i = 0; i < length; i++){
+                data[i] = (byte)(i % 11 == 0 ? rand.nextInt() : i / 200);
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            SaveIO.deflate(data, length, out);
+
+            //also verifies the combined checksum, as the inflater rejects mismatches
+            assertArrayEquals(data, new InflaterInputStream(new ByteArrayInputStream(out.toByteArray())).readAllBytes());
+        }
+    }
+
+    @Test
+    void packedTiles() throws IOException{
+        world.loadMap(testMap);
+        PackedTiles tiles = PackedTiles.read(testMap.file);
+
+        assertEquals(world.width(), tiles.width);
+        assertEquals(world.height(), tiles.height);
+        assertTrue(tiles.buildings.size > 0);
+
+        for(Tile tile : world.tiles){
+            int index = tiles.index(tile.x, tile.y);
+            assertEquals(tile.floor(), tiles.floor(index), "floor of " + tile);
+            assertEquals(tile.overlay(), tiles.overlay(index), "overlay of " + tile);
+            assertEquals(tile.block(), tiles.block(index), "block of " + tile);
+            if(tile.build != null){
+                assertEquals(tile.team(), tiles.team(index), "team of " + tile);
+            }
+        }
+    }
+
+    @Test
+    void packedTilesRemapped() throws IOException{
+        world.loadMap(testMap);
+        Fi file = saveDirectory.child("remapped.msav");
+
+        //write a file in which two floors have each other's IDs, like a file from a build with another content order
+        Block a = world.tile(0, 0).floor(), b = a == Blocks.stone ? Blocks.sand : Blocks.stone;
+        short idA = a.id, idB = b.id;
+        Seq<Block> blocks = content.blocks();
+        try{
+            blocks.swap(idA, idB);
+            a.id = idB;
+            b.id = idA;
+            SaveIO.save(file);
+        }finally{
+            blocks.swap(idA, idB);
+            a.id = idA;
+            b.id = idB;
+        }
+
+        PackedTiles tiles = PackedTiles.read(file);
+        for(Tile tile : world.tiles){
+            int index = tiles.index(tile.x, tile.y);
+            assertEquals(tile.floor(), tiles.floor(index), "floor of " + tile);
+            assertEquals(tile.overlay(), tiles.overlay(index), "overlay of " + tile);
+            assertEquals(tile.block(), tiles.block(index), "block of " + tile);
+        }
+    }
+
+    @Test
+    void metaIndex() throws IOException{
+        world.loadMap(testMap);
+        Fi file = saveDirectory.child("indexed.msav");
+        SaveIO.save(file);
+
+        MetaIndex.Entry entry = SaveIO.getIndexed(file);
+        assertSame(entry, SaveIO.getIndexed(file), "Unchanged files must be read from the index.");
+        assertEquals(SaveIO.getVersion().version, entry.version);
+        assertEquals(state.map.name(), SaveIO.getMeta(file).tags.get("mapname"));
+
+        state.wave = 42;
+        SaveIO.save(file);
+        file.file().setLastModified(entry.modified + 10000);
+
+        MetaIndex.Entry changed = SaveIO.getIndexed(file);
+        assertNotSame(entry, changed, "Changed files must be read again.");
+        assertEquals(42, changed.tags.getInt("wave"));
+
+        metaIndex.save();
+        assertNotNull(new MetaIndex(dataDirectory.child("meta_index.dat")).get(file), "Index must persist.");
+    }
+
+    @Test
+    void saveJournal() throws Exception{
+        world.loadMap(testMap);
+        Unit removed = UnitTypes.dagger.spawn(Team.sharded, 20f, 20f);
+        int removedId = removed.id();
+        Fi file = saveDirectory.child("journal.msav");
+        SaveIO.save(file);
+
+        ExecutorService executor = Threads.executor("Journal", 1);
+        SaveJournal journal = new SaveJournal(executor);
+        journal.begin(file);
+
+        Tile tile = null;
+        for(Tile other : world.tiles){
+            if(other.block() == Blocks.air && !other.floor().isDeep()){
+                tile = other;
+                break;
+            }
+        }
+        assertNotNull(tile);
+        int x = tile.x, y = tile.y;
+
+        tile.setBlock(Blocks.sorter, Team.sharded);
+        tile.build.configured(null, Items.copper);
+        Events.fire(new EventType.ConfigEvent(tile.build, null, Items.copper));
+
+        //a save that fails to be written must not take later changes away from the last save
+        Fi failed = saveDirectory.child("journal-failed.msav");
+        journal.begin(failed);
+        journal.failed(failed);
+
+        //units that leave the world without being destroyed, like reconstructor inputs, are recorded too
+        removed.remove();
+        Unit added = UnitTypes.flare.spawn(Team.sharded, 40f, 40f);
+        int addedId = added.id();
+
+        journal.flush();
+        journal.end();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertFalse(SaveJournal.fileFor(failed).exists());
+
+        SaveIO.load(file);
+        assertEquals(Blocks.air, world.tile(x, y).block());
+        assertNotNull(Groups.unit.getByID(removedId));
+        assertNull(Groups.unit.getByID(addedId));
+
+        assertTrue(SaveJournal.replay(file) > 0);
+        assertNull(Groups.unit.getByID(removedId), "removed unit must stay removed");
+        assertEquals(UnitTypes.flare, Groups.unit.getByID(addedId).type);
+        assertEquals(Blocks.sorter, world.tile(x, y).block());
+        assertEquals(Team.sharded, world.tile(x, y).team());
+        assertEquals(Items.copper, world.tile(x, y).build.config());
+    }
+
     @TestFactory
     DynamicTest[] testSectorValidity(){
         Seq<DynamicTest> out = new Seq<>();
@@ -0,0 +1,70 @@
+import arc.math.*;
+import mindustry.ai.FieldWeights.*;
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FieldWeightsTests{
+
+    @Test
+    void chunkedMatchesFlat(){
+        int size = 300 * 200;
+        Rand rand = new Rand(3);
+        IntWeights flat = new IntWeights(size, -1);
+        ChunkedWeights chunked = new ChunkedWeights(size, -1);
+
+        //only write to part of the map, so some chunks stay unallocated
+        for(int i = 0; i < 50000; i++){
+            int pos = rand.random(size / 2);
+            int value = switch(rand.random(3)){
+                case 0 -> -1;
+                case 1 -> Integer.MAX_VALUE;
+                case 2 -> rand.random(6000 * 40);
+                default -> rand.random(500);
+            };
+            flat.set(pos, value);
+            chunked.set(pos, value);
+        }
+
+        for(int i = 0; i < size; i++){
+            assertEquals(flat.get(i), chunked.get(i), "mismatch at " + i);
+        }
+
+        ChunkedWeights copy = new ChunkedWeights(size, -1);
+        copy.set(chunked);
+        for(int i = 0; i < size; i++){
+            assertEquals(flat.get(i), copy.get(i), "copy mismatch at " + i);
+        }
+
+        chunked.clear();
+        assertEquals(-1, chunked.get(0));
+        assertEquals(-1, chunked.get(size - 1));
+    }
+
+    @Test
+    void chunkedWidens(){
+        int size = 300 * 200;
+        ChunkedWeights chunked = new ChunkedWeights(size, -1);
+
+        //values that fit in 16 bits, in a quarter of the map
+        for(int i = 0; i < size / 4; i++){
+            chunked.set(i, i % 60000);
+        }
+        assertTrue(chunked.memory() < new IntWeights(size, -1).memory() / 4, "chunked storage is not smaller");
+
+        long memory = chunked.memory();
+        chunked.set(5, 6000 * 40);
+        assertEquals(6000 * 40, chunked.get(5));
+        assertEquals(4, chunked.get(4));
+        assertEquals(6, chunked.get(6));
+        assertTrue(chunked.memory() > memory, "chunk was not widened");
+
+        chunked.set(5, 7);
+        assertEquals(7, chunked.get(5));
+
+        chunked.compact();
+        assertEquals(memory, chunked.memory(), "chunk was not narrowed");
+        assertEquals(7, chunked.get(5));
+        assertEquals(6, chunked.get(6));
+    }
+}
@@ -0,0 +1,169 @@
+import arc.math.*;
+import arc.math.geom.*;
+import arc.struct.*;
+import arc.util.*;
+import mindustry.async.PhysicsProcess.*;
+import mindustry.async.PhysicsProcess.PhysicsWorld.*;
+import org.junit.jupiter.api.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/** Tests the physics broadphases against each other. Benchmarks only report timings, and run with the benchmark task. */
+public class PhysicsTests{
+    static final Rect bounds = new Rect(0, 0, 2000, 2000);
+
+    @Test
+    void gridSeparatesOverlapping(){
+        for(boolean grid : new boolean[]{false, true}){
+            PhysicsWorld world = new PhysicsWorld(bounds, grid);
+            PhysicsBody a = body(100, 100, 0), b = body(104, 100, 0);
+            world.add(a);
+            world.add(b);
+            world.update();
+
+            assertTrue(b.x - a.x > 4f, "bodies were not separated, grid: " + grid);
+        }
+    }
+
+    @Test
+    void gridIgnoresOtherLayers(){
+        PhysicsWorld world = new PhysicsWorld(bounds, true);
+        PhysicsBody a = body(100, 100, 0), b = body(104, 100, 2);
+        world.add(a);
+        world.add(b);
+        world.update();
+
+        assertEquals(100f, a.x);
+        assertEquals(104f, b.x);
+    }
+
+    @Test
+    void gridHandlesRemoval(){
+        PhysicsWorld world = new PhysicsWorld(bounds, true);
+        PhysicsBody a = body(100, 100, 0), b = body(500, 500, 0), c = body(104, 100, 0);
+        world.add(a);
+        world.add(b);
+        world.add(c);
+        world.update();
+
+        world.remove(a);
+        assertEquals(-1, a.index);
+        //the last body is swapped into the freed slot
+        assertEquals(0, c.index);
+        assertEquals(1, b.index);
+
+        //c is now alone near its original position, and must not collide with the removed body
+        float cx = c.x;
+        world.update();
+        assertEquals(cx, c.x);
+    }
+
+    @Test
+    void islandsDeterministicAcrossThreads() throws Exception{
+        float[] sequential = simulate(false);
+
+        for(int threads : new int[]{1, 2, 4, 8}){
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try{
+                float[] result = pool.submit(() -> simulate(true)).get();
+                for(int i = 0; i < result.length; i++){
+                    assertEquals(Float.floatToRawIntBits(sequential[i]), Float.floatToRawIntBits(result[i]), "mismatch at " + i + " with " + threads + " threads");
+                }
+            }finally{
+                pool.shutdown();
+            }
+        }
+    }
+
+    static float[] simulate(boolean parallel){
+        Rand rand = new Rand(7);
+        PhysicsWorld world = new PhysicsWorld(bounds, true);
+        world.parallel = parallel;
+        PhysicsBody[] bodies = new PhysicsBody[4000];
+        for(int i = 0; i < bodies.length; i++){
+            //dense clusters, so that there are many islands of varying size
+            float cx = rand.random(10) * 180f + 100f, cy = rand.random(10) * 180f + 100f;
+            world.add(bodies[i] = body(cx + rand.range(60f), cy + rand.range(60f), rand.random(2)));
+            bodies[i].local = rand.chance(0.9);
+        }
+
+        for(int i = 0; i < 30; i++){
+            world.update();
+        }
+
+        float[] out = new float[bodies.length * 2];
+        for(int i = 0; i < bodies.length; i++){
+            out[i * 2] = bodies[i].x;
+            out[i * 2 + 1] = bodies[i].y;
+        }
+        return out;
+    }
+
+    @Test
+    void gridOverlapsMatchBruteForce(){
+        Rand rand = new Rand(1);
+        PhysicsWorld world = new PhysicsWorld(bounds, true);
+        PhysicsBody[] bodies = new PhysicsBody[3000];
+        for(int i = 0; i < bodies.length; i++){
+            world.add(bodies[i] = body(rand.random(bounds.width), rand.random(bounds.height), rand.random(2)));
+            bodies[i].radius = rand.random(2f, 12f);
+            bodies[i].local = rand.chance(0.8);
+        }
+
+        //updates move bodies between cells, which must stay linked correctly
+        for(int step = 0; step < 5; step++){
+            LongSeq found = new LongSeq(), expected = new LongSeq();
+            world.eachOverlap((i, j) -> found.add(Pack.longInt(i, j)));
+
+            for(int i = 0; i < bodies.length; i++){
+                for(int j = i + 1; j < bodies.length; j++){
+                    PhysicsBody a = bodies[i], b = bodies[j];
+                    if(a.layer == b.layer && (a.local || b.local) && Mathf.dst(a.x, a.y, b.x, b.y) < a.radius + b.radius){
+                        expected.add(Pack.longInt(a.index, b.index));
+                    }
+                }
+            }
+
+            Arrays.sort(found.items, 0, found.size);
+            Arrays.sort(expected.items, 0, expected.size);
+            assertTrue(expected.size > 0);
+            assertArrayEquals(expected.toArray(), found.toArray(), "overlaps differ at step " + step);
+
+            world.update();
+        }
+    }
+
+    @Test
+    @Tag("benchmark")
+    void broadphaseBenchmark(){
+        int count = 3000, iterations = 60;
+
+        for(boolean grid : new boolean[]{false, true}){
+            Rand rand = new Rand(1);
+            PhysicsWorld world = new PhysicsWorld(bounds, grid);
+            for(int i = 0; i < count; i++){
+                world.add(body(rand.random(bounds.width), rand.random(bounds.height), rand.random(2)));
+            }
+
+            //warmup
+            for(int i = 0; i < iterations; i++) world.update();
+
+            long start = Time.nanos();
+            for(int i = 0; i < iterations; i++) world.update();
+            Log.info("@ broadphase: @ms/update", grid ? "Grid" : "QuadTree", Strings.fixed(Time.timeSinceNanos(start) / 1000000f / iterations, 3));
+        }
+    }
+
+    static PhysicsBody body(float x, float y, int layer){
+        PhysicsBody body = new PhysicsBody();
+        body.x = x;
+        body.y = y;
+        body.radius = 4f;
+        body.mass = 1f;
+        body.layer = layer;
+        return body;
+    }
+}
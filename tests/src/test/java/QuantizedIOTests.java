@@ -0,0 +1,41 @@
+import arc.util.io.*;
+import mindustry.io.*;
+import org.junit.jupiter.api.*;
+
+import java.io.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class QuantizedIOTests{
+
+    @Test
+    void roundTrip(){
+        float[] values = {0f, 0.01f, 1f, -1f, 123.4f, -5000.7f, 8000f, 359.99f, 720.5f, -90f};
+
+        for(int bits : new int[]{0, 8, 16, 32}){
+            for(boolean angle : new boolean[]{false, true}){
+                float precision = angle ? 360f / (bits == 8 ? 256 : 65536) : 0.125f;
+
+                for(float value : values){
+                    ByteArrayOutputStream out = new ByteArrayOutputStream();
+                    QuantizedIO.write(new Writes(new DataOutputStream(out)), value, precision, bits, angle);
+                    float result = QuantizedIO.read(new Reads(new DataInputStream(new ByteArrayInputStream(out.toByteArray()))), precision, bits, angle);
+
+                    if(angle){
+                        float diff = Math.abs(((result - value) % 360f + 540f) % 360f - 180f);
+                        assertTrue(diff <= precision, "angle " + value + " read as " + result + " with " + bits + " bits");
+                    }else if(bits == 0 || bits == 32 || Math.abs(value / precision) < (1 << (bits - 1)) - 1){
+                        assertEquals(value, result, precision, "value read with " + bits + " bits");
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void smallPositiveValuesStayPositive(){
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        QuantizedIO.write(new Writes(new DataOutputStream(out)), 0.01f, 1f, 0, false);
+        assertTrue(QuantizedIO.read(new Reads(new DataInputStream(new ByteArrayInputStream(out.toByteArray()))), 1f, 0, false) > 0f);
+    }
+}
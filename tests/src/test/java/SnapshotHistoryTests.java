@@ -0,0 +1,51 @@
+import arc.math.*;
+import mindustry.net.*;
+import mindustry.net.SnapshotHistory.*;
+import org.junit.jupiter.api.*;
+
+import java.io.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SnapshotHistoryTests{
+
+    @Test
+    void deltaRoundTrip() throws IOException{
+        Rand rand = new Rand(3);
+
+        for(int length : new int[]{0, 1, 7, 8, 9, 33}){
+            byte[] base = new byte[length], current = new byte[length];
+            rand.nextBytes(base);
+            System.arraycopy(base, 0, current, 0, length);
+            for(int i = 0; i < length; i += 3){
+                current[i] ^= (byte)(i + 1);
+            }
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            SnapshotHistory.writeDelta(new DataOutputStream(out), current, 0, base, 0, length);
+
+            byte[] result = new byte[length];
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+            SnapshotHistory.readDelta(in, base, 0, result, length);
+
+            assertArrayEquals(current, result);
+            assertEquals(0, in.available(), "unread delta bytes");
+        }
+    }
+
+    @Test
+    void baselinesReplaced(){
+        SnapshotHistory history = new SnapshotHistory();
+        Baseline first = history.begin(0);
+        first.put(5, new byte[]{1, 2, 3}, 0, 3);
+
+        assertSame(first, history.get(0));
+        assertEquals(3, first.length(5));
+        assertEquals(-1, first.length(6));
+
+        //same slot, so the first snapshot is gone
+        history.begin(SnapshotHistory.capacity);
+        assertNull(history.get(0));
+        assertNull(history.get(-1));
+    }
+}
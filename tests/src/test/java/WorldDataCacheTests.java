@@ -0,0 +1,33 @@
+import arc.math.*;
+import mindustry.net.*;
+import org.junit.jupiter.api.*;
+
+import java.io.*;
+import java.util.zip.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WorldDataCacheTests{
+
+    @Test
+    void joinedStreamsInflate() throws IOException{
+        Rand rand = new Rand(5);
+
+        for(int length : new int[]{0, 10, 100000}){
+            byte[] header = new byte[length / 3 + 5], map = new byte[length];
+            rand.nextBytes(header);
+            for(int i = 0; i < length; i++){
+                map[i] = (byte)(i % 13 == 0 ? rand.nextInt() : i / 100);
+            }
+
+            byte[] joined = WorldDataCache.join(WorldDataCache.compress(header, header.length, false), WorldDataCache.compress(map, map.length, true));
+
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            expected.write(header);
+            expected.write(map);
+
+            //also verifies the combined checksum, as the inflater rejects mismatches
+            assertArrayEquals(expected.toByteArray(), new InflaterInputStream(new ByteArrayInputStream(joined)).readAllBytes());
+        }
+    }
+}